@@ -28,6 +28,7 @@ import org.openstreetmap.josm.plugins.PluginInformation;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayerFromClipboardAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayerFromFileAction;
+import org.openstreetmap.josm.plugins.piclayer.actions.newlayer.NewLayerFromFolderAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.MovePictureAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.RotatePictureAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.transform.ScaleXPictureAction;
@@ -54,6 +55,8 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
 
     // Plugin menu
     JosmAction newLayerFromFileAction = new NewLayerFromFileAction();
+    JosmAction newLayerFromFolderAction = new NewLayerFromFolderAction(false);
+    JosmAction newMosaicFromFolderAction = new NewLayerFromFolderAction(true);
     JosmAction newLayerFromClipboardAction = new NewLayerFromClipboardAction();
 
     /**
@@ -68,6 +71,8 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
 
         // Add menu items
         MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayerFromFileAction);
+        MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayerFromFolderAction);
+        MainMenu.add(MainApplication.getMenu().imagerySubMenu, newMosaicFromFolderAction);
         MainMenu.add(MainApplication.getMenu().imagerySubMenu, newLayerFromClipboardAction);
         updateEnabledState();
         // Listen to layers
@@ -159,6 +164,8 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
     @Override
     public void layerAdded(LayerAddEvent e) {
         newLayerFromFileAction.setEnabled(true);
+        newLayerFromFolderAction.setEnabled(true);
+        newMosaicFromFolderAction.setEnabled(true);
         newLayerFromClipboardAction.setEnabled(true);
     }
 
@@ -180,6 +187,8 @@ public class PicLayerPlugin extends Plugin implements LayerChangeListener, Activ
     private void updateEnabledState() {
         boolean enable = !MainApplication.getLayerManager().getLayers().isEmpty();
         newLayerFromFileAction.setEnabled(enable);
+        newLayerFromFolderAction.setEnabled(enable);
+        newMosaicFromFolderAction.setEnabled(enable);
         newLayerFromClipboardAction.setEnabled(enable);
     }
 }
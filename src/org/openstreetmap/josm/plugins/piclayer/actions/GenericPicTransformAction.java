@@ -53,6 +53,10 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
         super.exitMode();
         MainApplication.getMap().mapView.removeMouseListener(this);
         MainApplication.getMap().mapView.removeMouseMotionListener(this);
+        if (isDragging && currentLayer != null) {
+            isDragging = false;
+            currentLayer.setInteractive(false);
+        }
     }
 
     @Override
@@ -64,6 +68,7 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
             if (currentLayer != null && e.getButton() == MouseEvent.BUTTON1) {
                 requestFocusInMapView();
                 isDragging = true;
+                currentLayer.setInteractive(true);
                 prevMousePoint = new Point(e.getPoint());
                 prevEastNorth = MainApplication.getMap().mapView.getEastNorth(e.getX(), e.getY());
                 // try to find and fill selected point if possible
@@ -90,6 +95,8 @@ public abstract class GenericPicTransformAction extends MapMode implements Mouse
     public void mouseReleased(MouseEvent e) {
         // End action
         isDragging = false;
+        if (currentLayer != null)
+            currentLayer.setInteractive(false);
         if (currentCommand != null)
             currentCommand.addIfChanged();
     }
@@ -0,0 +1,268 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.newlayer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerMosaic;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Creates one picture layer for each picture of a directory tree, without decoding them.
+ * <p>
+ * The directories are walked in parallel, then the headers of the pictures and their
+ * calibration files are read in parallel. The layers are added to the map in path order,
+ * calibrated, and only show their footprint: each picture is decoded in the background
+ * when its layer becomes visible in the map view (see {@link PicLayerAbstract#loadWhenVisible()}).
+ * The pictures without calibration file or GeoTIFF georeferencing are not added, they would
+ * all be stacked at the center of the map view and decoded at once; they are listed to the user.
+ * <p>
+ * Optionally, the pictures are added to a single {@link PicLayerMosaic} instead of one layer each.
+ */
+public class LoadFolderTask extends PleaseWaitRunnable {
+
+    // Preference: number of threads walking the directories and reading the picture headers
+    private static final String PREF_IMPORT_THREADS = "piclayer.import.threads";
+    // Number of layers added to the map at once in the EDT
+    private static final int BATCH_SIZE = 100;
+    // Number of failed or skipped files listed in the warning
+    private static final int MAX_LISTED_ERRORS = 20;
+
+    private final File directory;
+    private final int newLayerPos;
+    private final Boolean autoloadCalibration;
+    private final PicLayerMosaic mosaic;
+
+    // Layers added to the map, accessed in the EDT only
+    private final List<PicLayerAbstract> added = new ArrayList<>();
+    private final List<String> errors = new ArrayList<>();
+    // Pictures not added because they have no calibration, accessed in the EDT only
+    private final List<String> uncalibrated = new ArrayList<>();
+    private volatile boolean canceled;
+
+    /**
+     * Walks the files of a directory in parallel.
+     */
+    private final class DirectoryWalk extends RecursiveTask<List<File>> {
+        private final File dir;
+
+        DirectoryWalk(File dir) {
+            this.dir = dir;
+        }
+
+        @Override
+        protected List<File> compute() {
+            List<File> pictures = new ArrayList<>();
+            File[] children = dir.listFiles();
+            if (children == null || canceled) {
+                return pictures;
+            }
+            List<DirectoryWalk> subdirs = new ArrayList<>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    DirectoryWalk walk = new DirectoryWalk(child);
+                    walk.fork();
+                    subdirs.add(walk);
+                } else if (PicLayerFromFile.hasPictureExtension(child.getName())) {
+                    pictures.add(child);
+                }
+            }
+            for (DirectoryWalk walk : subdirs) {
+                pictures.addAll(walk.join());
+            }
+            return pictures;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory           the root of the directory tree
+     * @param newLayerPos         the position of the new layers in the layer list
+     * @param autoloadCalibration whether to apply the .cal files found, {@code null} to follow the preference
+     * @param mosaic              whether to add all the pictures to one mosaic layer
+     */
+    public LoadFolderTask(File directory, int newLayerPos, Boolean autoloadCalibration, boolean mosaic) {
+        super(tr("Loading pictures"), false);
+        this.directory = directory;
+        this.newLayerPos = newLayerPos;
+        this.autoloadCalibration = autoloadCalibration;
+        this.mosaic = mosaic ? new PicLayerMosaic(directory.getName()) : null;
+    }
+
+    @Override
+    protected void realRun() {
+        ProgressMonitor monitor = getProgressMonitor();
+        monitor.indeterminateSubTask(tr("Looking for pictures in {0}", directory.getName()));
+        ForkJoinPool pool = Utils.newForkJoinPool(PREF_IMPORT_THREADS, "piclayer-folder-%d", Thread.NORM_PRIORITY);
+        try {
+            List<File> files = pool.invoke(new DirectoryWalk(directory));
+            files.sort(Comparator.comparing(File::getPath));
+            if (files.isEmpty() || canceled) {
+                return;
+            }
+
+            // Header only, in parallel
+            monitor.setTicksCount(files.size());
+            monitor.subTask(tr("Reading {0} picture headers", files.size()));
+            List<Future<PicLayerFromFile>> probed = new ArrayList<>(files.size());
+            for (File file : files) {
+                probed.add(pool.submit((Callable<PicLayerFromFile>) () -> probe(file)));
+            }
+
+            // Added to the map in path order, in batches, so that the EDT stays responsive
+            List<PicLayerFromFile> batch = new ArrayList<>(BATCH_SIZE);
+            for (int i = 0; i < files.size() && !canceled; i++) {
+                try {
+                    PicLayerFromFile layer = probed.get(i).get();
+                    if (layer != null) {
+                        batch.add(layer);
+                    } else {
+                        addError(files.get(i).getPath() + ": " + tr("unknown picture format"));
+                    }
+                } catch (ExecutionException e) {
+                    Logging.warn(e.getCause());
+                    addError(files.get(i).getPath() + ": " + e.getCause().getMessage());
+                }
+                monitor.worked(1);
+                if (batch.size() == BATCH_SIZE || i == files.size() - 1) {
+                    List<PicLayerFromFile> layers = new ArrayList<>(batch);
+                    GuiHelper.runInEDTAndWait(() -> addLayers(layers));
+                    batch.clear();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private PicLayerFromFile probe(File file) throws IOException {
+        if (canceled) {
+            return null;
+        }
+        PicLayerFromFile layer = new PicLayerFromFile(file);
+        layer.setAutoloadCalibration(autoloadCalibration);
+        return layer.probe() ? layer : null;
+    }
+
+    private void addLayers(List<PicLayerFromFile> layers) {
+        if (MainApplication.getMap() == null) {
+            return;
+        }
+        for (PicLayerFromFile layer : layers) {
+            try {
+                layer.initializePosition();
+                layer.finishLoading();
+                if (!layer.isCalibrated()) {
+                    String warning = layer.getCalibrationWarning();
+                    uncalibrated.add(warning != null ? warning : layer.getName());
+                    continue;
+                }
+                layer.loadWhenVisible();
+                if (mosaic != null) {
+                    mosaic.addPicture(layer);
+                    if (!MainApplication.getLayerManager().containsLayer(mosaic)) {
+                        MainApplication.getLayerManager().addLayer(mosaic);
+                        MainApplication.getMap().mapView.moveLayer(mosaic, newLayerPos);
+                    }
+                } else {
+                    MainApplication.getLayerManager().addLayer(layer);
+                    MainApplication.getMap().mapView.moveLayer(layer, newLayerPos);
+                }
+                added.add(layer);
+            } catch (IOException e) {
+                Logging.warn(e);
+                addError(layer.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private void addError(String error) {
+        synchronized (errors) {
+            errors.add(error);
+        }
+    }
+
+    @Override
+    protected void finish() {
+        boolean noError;
+        synchronized (errors) {
+            noError = errors.isEmpty();
+            StringBuilder msg = new StringBuilder();
+            if (!errors.isEmpty()) {
+                msg.append(trn("{0} file could not be loaded:", "{0} files could not be loaded:", errors.size(), errors.size()));
+                appendList(msg, errors);
+            }
+            if (!uncalibrated.isEmpty()) {
+                if (msg.length() > 0) {
+                    msg.append("\n\n");
+                }
+                msg.append(trn("{0} picture has no calibration file and was not added:",
+                        "{0} pictures have no calibration file and were not added:", uncalibrated.size(), uncalibrated.size()));
+                appendList(msg, uncalibrated);
+            }
+            if (msg.length() > 0) {
+                JOptionPane.showMessageDialog(MainApplication.getMainFrame(), msg.toString(),
+                        tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            }
+        }
+        if (added.isEmpty()) {
+            if (!canceled && noError && uncalibrated.isEmpty()) {
+                JOptionPane.showMessageDialog(MainApplication.getMainFrame(),
+                        tr("No picture found in {0}", directory.getName()), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            }
+            return;
+        }
+
+        if (MainApplication.getMap() != null && Config.getPref().getInt("piclayer.zoom-on-load", 1) != 0) {
+            BoundingXYVisitor v = new BoundingXYVisitor();
+            for (PicLayerAbstract layer : added) {
+                if (MainApplication.getLayerManager().containsLayer(mosaic != null ? mosaic : layer)) {
+                    layer.visitBoundingBox(v);
+                }
+            }
+            if (v.getBounds() != null) {
+                MainApplication.getMap().mapView.zoomTo(v);
+            }
+        }
+    }
+
+    private static void appendList(StringBuilder msg, List<String> names) {
+        for (String name : names.subList(0, Math.min(names.size(), MAX_LISTED_ERRORS))) {
+            msg.append('\n').append(name);
+        }
+        if (names.size() > MAX_LISTED_ERRORS) {
+            msg.append("\n...");
+        }
+    }
+
+    @Override
+    protected void cancel() {
+        // Stops the walk and the loop, the layers already added stay on the map
+        canceled = true;
+    }
+}
@@ -0,0 +1,307 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.newlayer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.PleaseWaitRunnable;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Loads the images of picture layers that were already added to the map as placeholders.
+ * <p>
+ * First, the size of the pictures and their calibration files are read from their headers
+ * only, so that the layers can be calibrated, and the map zoomed to them, right away.
+ * Then the images are decoded in parallel by a bounded pool of threads. The layers are
+ * calibrated in the EDT in the order they were given. Layers whose size could not be probed
+ * are calibrated as soon as their image and the images of the layers before it are available.
+ * Layers that could not be loaded, or whose loading was canceled, are removed from the map.
+ * <p>
+ * The layers can also be given while the task runs, by a {@link LayerSource}: each of them
+ * is probed and decoded as soon as it is given, e.g. while the rest of a KML document is parsed.
+ */
+public class LoadPicLayerTask extends PleaseWaitRunnable {
+
+    /**
+     * Gives the layers to load while the task runs.
+     */
+    @FunctionalInterface
+    public interface LayerSource {
+        /**
+         * Adds the layers to the map as placeholders, and gives each of them to the task once added.
+         * Called in the thread of the task.
+         *
+         * @param sink receives the placeholder layers, in order
+         * @throws IOException in case of error, the layers given before are still loaded
+         */
+        void produce(Consumer<PicLayerAbstract> sink) throws IOException;
+    }
+
+    // Preference: number of pictures decoded at the same time
+    private static final String PREF_IMPORT_THREADS = "piclayer.import.threads";
+
+    private final List<PicLayerAbstract> layers;
+    private final LayerSource source;
+    private final boolean zoomToLayers;
+
+    // Probing and decoding of each layer, and the next layers to calibrate and to finish, in order.
+    // Accessed in the thread of the task only
+    private ExecutorService decoders;
+    private final List<Future<Boolean>> probed = new ArrayList<>();
+    private final List<Future<Boolean>> decoded = new ArrayList<>();
+    private int nextProbed;
+    private int nextDecoded;
+
+    // Layers calibrated, and layers completely initialized, accessed in the EDT only
+    private final List<PicLayerAbstract> calibrated = new ArrayList<>();
+    private final List<PicLayerAbstract> loaded = new ArrayList<>();
+    private boolean zoomed;
+    private final List<String> errors = new ArrayList<>();
+    private volatile boolean canceled;
+
+    /**
+     * Constructor
+     *
+     * @param layers       the placeholder layers, already added to the layer manager
+     * @param zoomToLayers whether to zoom to the loaded layers at the end
+     */
+    public LoadPicLayerTask(List<? extends PicLayerAbstract> layers, boolean zoomToLayers) {
+        super(tr("Loading pictures"), false);
+        this.layers = new ArrayList<>(layers);
+        this.source = null;
+        this.zoomToLayers = zoomToLayers;
+    }
+
+    /**
+     * Constructs a task loading the layers given while it runs.
+     *
+     * @param source       adds the placeholder layers
+     * @param zoomToLayers whether to zoom to the loaded layers at the end
+     */
+    public LoadPicLayerTask(LayerSource source, boolean zoomToLayers) {
+        super(tr("Loading pictures"), false);
+        this.layers = new ArrayList<>();
+        this.source = source;
+        this.zoomToLayers = zoomToLayers;
+    }
+
+    @Override
+    protected void realRun() {
+        int threads = Config.getPref().getInt(PREF_IMPORT_THREADS, Runtime.getRuntime().availableProcessors());
+        if (source == null) {
+            threads = Math.min(layers.size(), threads);
+        }
+        decoders = Executors.newFixedThreadPool(Math.max(1, threads),
+                Utils.newThreadFactory("piclayer-import-%d", Thread.NORM_PRIORITY));
+        try {
+            if (source == null) {
+                submit(new ArrayList<>(layers));
+            } else {
+                getProgressMonitor().indeterminateSubTask(tr("Reading layers"));
+                try {
+                    source.produce(this::produced);
+                } catch (IOException e) {
+                    Logging.warn(e);
+                    synchronized (errors) {
+                        errors.add(e.getMessage());
+                    }
+                }
+            }
+            advance(true);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            decoders.shutdownNow();
+        }
+    }
+
+    private void produced(PicLayerAbstract layer) {
+        // Kept even if canceled, so that the placeholder is removed at the end
+        layers.add(layer);
+        if (canceled) {
+            return;
+        }
+        try {
+            submit(Collections.singletonList(layer));
+            // Calibrates the first layers while the next ones are produced
+            advance(false);
+        } catch (InterruptedException e) {
+            canceled = true;
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void submit(List<PicLayerAbstract> added) {
+        ProgressMonitor monitor = getProgressMonitor();
+        monitor.setTicksCount(layers.size());
+        // Header only: the footprints are known before any picture is decoded
+        for (PicLayerAbstract layer : added) {
+            probed.add(decoders.submit(() -> probe(layer)));
+        }
+        for (PicLayerAbstract layer : added) {
+            ProgressMonitor sub = monitor.createSubTaskMonitor(1, false);
+            decoded.add(decoders.submit(() -> loadImage(layer, sub)));
+        }
+    }
+
+    /**
+     * Calibrates, then finishes the layers in order, as long as they are ready.
+     *
+     * @param wait whether to wait for all the layers, at the end of the task
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void advance(boolean wait) throws InterruptedException {
+        for (; nextProbed < probed.size() && !canceled && (wait || probed.get(nextProbed).isDone()); nextProbed++) {
+            PicLayerAbstract layer = layers.get(nextProbed);
+            try {
+                if (probed.get(nextProbed).get()) {
+                    GuiHelper.runInEDTAndWait(() -> calibrateLayer(layer));
+                }
+            } catch (ExecutionException e) {
+                // Reported when the picture is decoded
+                Logging.trace(e.getCause());
+            }
+        }
+        if (wait && zoomToLayers && !canceled) {
+            GuiHelper.runInEDT(this::zoomToLayers);
+        }
+
+        // Finish in order, while the next pictures are still being decoded
+        for (; nextDecoded < nextProbed && !canceled && (wait || decoded.get(nextDecoded).isDone()); nextDecoded++) {
+            PicLayerAbstract layer = layers.get(nextDecoded);
+            try {
+                if (decoded.get(nextDecoded).get()) {
+                    GuiHelper.runInEDTAndWait(() -> finishLayer(layer));
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedIOException) {
+                    Logging.trace(cause);
+                    canceled = true;
+                    break;
+                }
+                Logging.warn(cause);
+                synchronized (errors) {
+                    errors.add(layer.getName() + ": " + cause.getMessage());
+                }
+            }
+        }
+    }
+
+    private Boolean probe(PicLayerAbstract layer) throws IOException {
+        if (canceled || !MainApplication.getLayerManager().containsLayer(layer)) {
+            return Boolean.FALSE;
+        }
+        return layer.probe();
+    }
+
+    private void calibrateLayer(PicLayerAbstract layer) {
+        if (!MainApplication.getLayerManager().containsLayer(layer)) {
+            return;
+        }
+        try {
+            layer.finishLoading();
+            calibrated.add(layer);
+            layer.invalidate();
+        } catch (IOException e) {
+            // Retried once the picture is decoded
+            Logging.warn(e);
+        }
+    }
+
+    private Boolean loadImage(PicLayerAbstract layer, ProgressMonitor monitor) throws IOException {
+        if (canceled || !MainApplication.getLayerManager().containsLayer(layer)) {
+            // Canceled, or placeholder removed by the user meanwhile
+            monitor.finishTask();
+            return Boolean.FALSE;
+        }
+        monitor.subTask(tr("Loading {0}", layer.getName()));
+        layer.loadImage(monitor);
+        return Boolean.TRUE;
+    }
+
+    private void finishLayer(PicLayerAbstract layer) {
+        if (!MainApplication.getLayerManager().containsLayer(layer)) {
+            return;
+        }
+        try {
+            if (!calibrated.contains(layer)) {
+                layer.finishLoading();
+                calibrated.add(layer);
+            }
+            loaded.add(layer);
+        } catch (IOException e) {
+            Logging.warn(e);
+            synchronized (errors) {
+                errors.add(layer.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    protected void finish() {
+        // Remove the placeholders that did not get an image
+        for (PicLayerAbstract layer : layers) {
+            if (!loaded.contains(layer) && MainApplication.getLayerManager().containsLayer(layer)) {
+                MainApplication.getLayerManager().removeLayer(layer);
+            }
+        }
+
+        synchronized (errors) {
+            if (!errors.isEmpty()) {
+                JOptionPane.showMessageDialog(MainApplication.getMainFrame(), String.join("\n", errors),
+                        tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            }
+        }
+
+        if (zoomToLayers && !zoomed) {
+            zoomToLayers();
+        }
+    }
+
+    /**
+     * Zooms to the calibrated layers, once. Must be called in the EDT.
+     */
+    private void zoomToLayers() {
+        if (zoomed || calibrated.isEmpty() || MainApplication.getMap() == null
+                || Config.getPref().getInt("piclayer.zoom-on-load", 1) == 0) {
+            return;
+        }
+        // if we are loading a single file, zoom on its pictures, so that the user can see something
+        BoundingXYVisitor v = new BoundingXYVisitor();
+        for (PicLayerAbstract layer : calibrated) {
+            if (MainApplication.getLayerManager().containsLayer(layer)) {
+                layer.visitBoundingBox(v);
+            }
+        }
+        if (v.getBounds() != null) {
+            MainApplication.getMap().mapView.zoomTo(v);
+            zoomed = true;
+        }
+    }
+
+    @Override
+    protected void cancel() {
+        // The image decoders poll the progress monitor, this only stops the loop
+        canceled = true;
+    }
+}
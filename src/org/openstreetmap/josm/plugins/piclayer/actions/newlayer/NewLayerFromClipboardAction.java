@@ -5,6 +5,7 @@ import static org.openstreetmap.josm.tools.I18n.tr;
 
 import java.awt.event.ActionEvent;
 import java.io.IOException;
+import java.util.Collections;
 
 import javax.swing.JOptionPane;
 
@@ -32,16 +33,16 @@ public class NewLayerFromClipboardAction extends JosmAction {
     public void actionPerformed(ActionEvent arg0) {
         // Create layer from clipboard
         PicLayerFromClipboard layer = new PicLayerFromClipboard();
-        // Add layer only if successfully initialized
         try {
-            layer.initialize();
+            layer.initializePosition();
         } catch (IOException e) {
             // Failed
             System.out.println("NewLayerFromClipboardAction::actionPerformed - " + e.getMessage());
             JOptionPane.showMessageDialog(null, e.getMessage(), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
             return;
         }
-        // Add layer
+        // Add layer, the picture is fetched from the clipboard and decoded in the background
         MainApplication.getLayerManager().addLayer(layer);
+        MainApplication.worker.submit(new LoadPicLayerTask(Collections.singletonList(layer), false));
     }
 }
@@ -8,6 +8,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
 import javax.swing.JFileChooser;
@@ -15,15 +16,16 @@ import javax.swing.JOptionPane;
 import javax.swing.filechooser.FileFilter;
 
 import org.openstreetmap.josm.actions.JosmAction;
-import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
 import org.openstreetmap.josm.gui.MainApplication;
 import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromKML;
-import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLGroundOverlay;
+import org.openstreetmap.josm.plugins.piclayer.layer.ZipIndex;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLReader;
 import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
 
 /**
  * Action responsible for creation of new layers based on image files.
@@ -43,6 +45,8 @@ public class NewLayerFromFileAction extends JosmAction {
             List<String> extensions = new ArrayList<>();
             extensions.add("zip");
             extensions.add("kml");
+            extensions.add("kmz");
+            extensions.add("svg");
             for (String ext : ImageIO.getReaderFormatNames()) {
                 extensions.add(ext);
             }
@@ -68,7 +72,7 @@ public class NewLayerFromFileAction extends JosmAction {
 
         @Override
         public String getDescription() {
-            return tr("Supported image files, *.zip, *.kml");
+            return tr("Supported image files, *.zip, *.kml, *.kmz, *.svg");
         }
     }
 
@@ -104,64 +108,119 @@ public class NewLayerFromFileAction extends JosmAction {
                 if (pos < newLayerPos) newLayerPos = pos;
             }
 
+            List<PicLayerAbstract> layers = new ArrayList<>();
+            List<LoadPicLayerTask> sourceTasks = new ArrayList<>();
             for (File file : fc.getSelectedFiles()) {
-                // TODO: we need a progress bar here, it can take quite some time
-
                 Config.getPref().put(m_lastdirprefname, file.getParent());
 
                 // Create layer from file
-                if ("kml".equalsIgnoreCase(PicLayerFromFile.getFileExtension(file))) {
-                    KMLReader kml = new KMLReader(file);
-                    kml.process();
-                    JOptionPane.showMessageDialog(null, tr("KML calibration is in beta stage and may produce incorrectly calibrated layers!\n" + "Please use {0} to upload your KMLs that were calibrated incorrectly.", "https://josm.openstreetmap.de/ticket/5451"), tr("Notification"), JOptionPane.INFORMATION_MESSAGE);
-                    for (KMLGroundOverlay overlay : kml.getGroundOverlays()) {
-                        //TODO: zoom to whole picture, not only the last
-                        addNewLayerFromKML(file, overlay, newLayerPos);
+                if ("kml".equalsIgnoreCase(PicLayerFromFile.getFileExtension(file)) || KMLReader.isKmz(file)) {
+                    if (!KMLReader.isKmz(file)) {
+                        JOptionPane.showMessageDialog(null, tr("KML calibration is in beta stage and may produce incorrectly calibrated layers!\n" + "Please use {0} to upload your KMLs that were calibrated incorrectly.", "https://josm.openstreetmap.de/ticket/5451"), tr("Notification"), JOptionPane.INFORMATION_MESSAGE);
                     }
+                    // One layer per ground overlay, decoded while the rest of the document is parsed
+                    int pos = newLayerPos;
+                    sourceTasks.add(new LoadPicLayerTask(sink -> addOverlays(file, pos, sink), fc.getSelectedFiles().length == 1));
+                } else if ("zip".equalsIgnoreCase(PicLayerFromFile.getFileExtension(file))) {
+                    // One layer per picture of the archive, indexed in the background
+                    int pos = newLayerPos;
+                    sourceTasks.add(new LoadPicLayerTask(sink -> addArchive(file, pos, sink), fc.getSelectedFiles().length == 1));
                 } else {
-                    addNewLayerFromFile(file, newLayerPos, fc.getSelectedFiles().length == 1);
+                    addPlaceholder(new PicLayerFromFile(file), newLayerPos, layers);
                 }
             }
+
+            // The images are loaded in the background, the layers show up as soon as they are ready
+            if (!layers.isEmpty()) {
+                MainApplication.worker.submit(new LoadPicLayerTask(layers, fc.getSelectedFiles().length == 1));
+            }
+            for (LoadPicLayerTask task : sourceTasks) {
+                MainApplication.worker.submit(task);
+            }
         }
     }
 
-    private void addNewLayerFromFile(File file, int newLayerPos, boolean isZoomToLayer) {
+    /**
+     * Adds a placeholder layer for each ground overlay of a KML or KMZ file, as soon as it is parsed.
+     * Called in the thread of the loading task.
+     */
+    private static void addOverlays(File file, int newLayerPos, Consumer<PicLayerAbstract> sink) throws IOException {
+        // The pictures of a KMZ are read from the archive
+        ZipIndex index = KMLReader.isKmz(file) ? ZipIndex.read(file) : null;
+        KMLReader kml = new KMLReader(file);
+        List<String> missing = new ArrayList<>();
+        int[] overlays = {0};
         try {
-            PicLayerFromFile layer = new PicLayerFromFile(file);
-            layer.initialize();
-
-            placeLayer(layer, newLayerPos, isZoomToLayer);
+            kml.read(overlay -> {
+                overlays[0]++;
+                PicLayerAbstract layer;
+                if (index != null) {
+                    ZipIndex.Entry entry = PicLayerFromKML.findPicture(index, kml.getDocumentName(), overlay);
+                    if (entry == null) {
+                        missing.add(overlay.getFileName());
+                        return;
+                    }
+                    layer = new PicLayerFromKML(file, entry, overlay);
+                } else {
+                    layer = new PicLayerFromKML(file, overlay);
+                }
+                if (GuiHelper.runInEDTAndWaitAndReturn(() -> addPlaceholder(layer, newLayerPos))) {
+                    sink.accept(layer);
+                }
+            });
         } catch (IOException e) {
-            // Failed
-            System.out.println("NewLayerFromFileAction::actionPerformed - " + e.getMessage());
-            JOptionPane.showMessageDialog(null, e.getMessage(), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        }
+        if (overlays[0] == 0) {
+            GuiHelper.runInEDT(() -> JOptionPane.showMessageDialog(null, tr("No picture found in {0}", file.getName()),
+                    tr("Problem occurred"), JOptionPane.WARNING_MESSAGE));
+        } else if (!missing.isEmpty()) {
+            GuiHelper.runInEDT(() -> JOptionPane.showMessageDialog(null, tr("Pictures not found in {0}:", file.getName()) + "\n"
+                    + String.join("\n", missing), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE));
         }
     }
 
-    private void placeLayer(PicLayerAbstract layer, int newLayerPos, boolean isZoomToLayer) throws IOException {
-        // Add layer only if successfully initialized
-
-        MainApplication.getLayerManager().addLayer(layer);
-        MainApplication.getMap().mapView.moveLayer(layer, newLayerPos++);
+    /**
+     * Adds a placeholder layer for each picture of a zip archive, once its central directory is read.
+     * Called in the thread of the loading task.
+     */
+    private static void addArchive(File file, int newLayerPos, Consumer<PicLayerAbstract> sink) throws IOException {
+        ZipIndex index;
+        try {
+            index = ZipIndex.read(file);
+        } catch (IOException e) {
+            throw new IOException(file.getName() + ": " + e.getMessage(), e);
+        }
+        if (index.getImages().isEmpty()) {
+            GuiHelper.runInEDT(() -> JOptionPane.showMessageDialog(null, tr("No picture found in {0}", file.getName()),
+                    tr("Problem occurred"), JOptionPane.WARNING_MESSAGE));
+        }
+        for (ZipIndex.Entry entry : index.getImages()) {
+            PicLayerAbstract layer = new PicLayerFromFile(file, entry);
+            if (GuiHelper.runInEDTAndWaitAndReturn(() -> addPlaceholder(layer, newLayerPos))) {
+                sink.accept(layer);
+            }
+        }
+    }
 
-        if (isZoomToLayer && Config.getPref().getInt("piclayer.zoom-on-load", 1) != 0) {
-            // if we are loading a single picture file, zoom on it, so that the user can see something
-            BoundingXYVisitor v = new BoundingXYVisitor();
-            layer.visitBoundingBox(v);
-            MainApplication.getMap().mapView.zoomTo(v);
+    private static void addPlaceholder(PicLayerAbstract layer, int newLayerPos, List<PicLayerAbstract> layers) {
+        if (addPlaceholder(layer, newLayerPos)) {
+            layers.add(layer);
         }
     }
 
-    private void addNewLayerFromKML(File root, KMLGroundOverlay overlay, int newLayerPos) {
+    private static boolean addPlaceholder(PicLayerAbstract layer, int newLayerPos) {
         try {
-            PicLayerFromKML layer = new PicLayerFromKML(root, overlay);
-            layer.initialize();
+            layer.initializePosition();
 
-            placeLayer(layer, newLayerPos, true);
+            MainApplication.getLayerManager().addLayer(layer);
+            MainApplication.getMap().mapView.moveLayer(layer, newLayerPos);
+            return true;
         } catch (IOException e) {
             // Failed
-            System.out.println("NewLayerFromFileAction::actionPerformed - " + e.getMessage());
+            Logging.warn(e);
             JOptionPane.showMessageDialog(null, e.getMessage(), tr("Problem occurred"), JOptionPane.WARNING_MESSAGE);
+            return false;
         }
     }
 }
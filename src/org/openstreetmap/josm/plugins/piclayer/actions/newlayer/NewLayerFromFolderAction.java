@@ -0,0 +1,76 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.actions.newlayer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.event.ActionEvent;
+import java.io.File;
+
+import javax.swing.JFileChooser;
+import javax.swing.JOptionPane;
+
+import org.openstreetmap.josm.actions.JosmAction;
+import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerMosaic;
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Action responsible for creation of new layers for all the pictures of a folder and its subfolders,
+ * or of a single mosaic layer holding them. The pictures are only decoded when they become visible.
+ */
+public class NewLayerFromFolderAction extends JosmAction {
+
+    String m_lastdirprefname = "piclayer.lastdir";
+
+    private final boolean mosaic;
+
+    /**
+     * Constructor...
+     *
+     * @param mosaic whether to create one mosaic layer instead of one layer per picture
+     */
+    public NewLayerFromFolderAction(boolean mosaic) {
+        super(mosaic ? tr("New picture mosaic from folder...") : tr("New picture layers from folder..."),
+                "layericon24", null, null, false);
+        this.mosaic = mosaic;
+    }
+
+    /**
+     * Action handler
+     */
+    @Override
+    public void actionPerformed(ActionEvent arg0) {
+
+        // Choose a folder
+        JFileChooser fc = new JFileChooser(Config.getPref().get(m_lastdirprefname));
+        fc.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        int result = fc.showOpenDialog(MainApplication.getMainFrame());
+        if (result != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File dir = fc.getSelectedFile();
+        Config.getPref().put(m_lastdirprefname, dir.getPath());
+
+        // Same placement as the layers loaded from files
+        int newLayerPos = MainApplication.getLayerManager().getLayers().size();
+        for (Layer l : MainApplication.getLayerManager().getLayers()) {
+            if (l instanceof PicLayerAbstract || l instanceof PicLayerMosaic) {
+                int pos = MainApplication.getLayerManager().getLayers().indexOf(l);
+                if (pos < newLayerPos) newLayerPos = pos;
+            }
+        }
+
+        // Ask once for the whole folder, rather than once per calibration file
+        Boolean autoloadCalibration = null;
+        if ("ask".equals(Config.getPref().get("piclayer.autoloadcal", "").trim().toLowerCase())) {
+            int answer = JOptionPane.showConfirmDialog(MainApplication.getMainFrame(),
+                    tr("Do you want to apply the calibration files found in {0}?", dir.getName()),
+                    tr("Load calibration file?"), JOptionPane.YES_NO_OPTION);
+            autoloadCalibration = answer == JOptionPane.YES_OPTION;
+        }
+
+        MainApplication.worker.submit(new LoadFolderTask(dir, newLayerPos, autoloadCalibration, mosaic));
+    }
+}
@@ -1,11 +1,22 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.io.session;
 
+import org.openstreetmap.josm.io.session.SessionWriter;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
+import org.w3c.dom.Element;
 
 public class FileSessionExporter extends PicLayerAbstractSessionExporter<PicLayerFromFile> {
 
     public FileSessionExporter(PicLayerFromFile layer) {
         super(layer);
     }
+
+    @Override
+    protected void addImageAttributes(Element imgElem, SessionWriter.ExportSupport support) {
+        // Picture of a zip archive
+        String zipEntry = layer.getZipEntryName();
+        if (zipEntry != null) {
+            addAttr("zipEntry", zipEntry, imgElem, support);
+        }
+    }
 }
@@ -1,11 +1,27 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.io.session;
 
+import org.openstreetmap.josm.io.session.SessionWriter;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromKML;
+import org.w3c.dom.Element;
 
 public class KMLSessionExporter extends PicLayerAbstractSessionExporter<PicLayerFromKML> {
 
     public KMLSessionExporter(PicLayerFromKML layer) {
         super(layer);
     }
+
+    @Override
+    protected void addImageAttributes(Element imgElem, SessionWriter.ExportSupport support) {
+        // Picture of a KMZ archive
+        String zipEntry = layer.getZipEntryName();
+        if (zipEntry != null) {
+            addAttr("zipEntry", zipEntry, imgElem, support);
+        }
+        // Link of the ground overlay, the document may have several
+        String overlay = layer.getGroundOverlay().getFileName();
+        if (overlay != null) {
+            addAttr("overlay", overlay, imgElem, support);
+        }
+    }
 }
@@ -60,6 +60,7 @@ public abstract class PicLayerAbstractSessionExporter<T extends PicLayerAbstract
             addAttr("file", entry.getFile().getPath(), imgElem, support);
             // FIXME: relative filenames as option
 
+            addImageAttributes(imgElem, support);
             addAttr("thumbnail", Boolean.toString(entry.hasThumbnail()), imgElem, support);
             if (entry.getPos() != null) {
                 Element posElem = support.createElement("position");
@@ -73,6 +74,16 @@ public abstract class PicLayerAbstractSessionExporter<T extends PicLayerAbstract
         return layerElem;
     }
 
+    /**
+     * Adds the attributes specific to a type of layer to the image element.
+     *
+     * @param imgElem the image element
+     * @param support the export support
+     */
+    protected void addImageAttributes(Element imgElem, SessionWriter.ExportSupport support) {
+        // No specific attributes by default
+    }
+
     protected static void addAttr(String name, String value, Element element, SessionWriter.ExportSupport support) {
         Element attrElem = support.createElement(name);
         attrElem.appendChild(support.createTextNode(value));
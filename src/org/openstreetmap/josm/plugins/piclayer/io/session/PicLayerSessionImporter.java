@@ -7,6 +7,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 import javax.swing.JOptionPane;
 
@@ -24,6 +25,7 @@ import org.openstreetmap.josm.io.session.SessionReader;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerAbstract;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile;
 import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromKML;
+import org.openstreetmap.josm.plugins.piclayer.layer.ZipIndex;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLGroundOverlay;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLReader;
 import org.openstreetmap.josm.tools.Logging;
@@ -46,6 +48,8 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
         }
 
         List<ImageEntry> entries = new ArrayList<>();
+        String zipEntry = null;
+        String overlayLink = null;
         NodeList imgNodes = elem.getChildNodes();
         for (int i = 0; i < imgNodes.getLength(); ++i) {
             Node imgNode = imgNodes.item(i);
@@ -57,7 +61,13 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
                     for (int j = 0; j < attrNodes.getLength(); ++j) {
                         Node attrNode = attrNodes.item(j);
                         if (attrNode.getNodeType() == Node.ELEMENT_NODE) {
-                            handleElement(entry, (Element) attrNode);
+                            if ("zipEntry".equals(((Element) attrNode).getTagName())) {
+                                zipEntry = attrNode.getTextContent();
+                            } else if ("overlay".equals(((Element) attrNode).getTagName())) {
+                                overlayLink = attrNode.getTextContent();
+                            } else {
+                                handleElement(entry, (Element) attrNode);
+                            }
                         }
                     }
                     entries.add(entry);
@@ -72,17 +82,31 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
         PicLayerAbstract layer = null;
 
         File file = entries.get(0).getFile();
-        if (file.getAbsolutePath().contains("kml") || file.getAbsolutePath().contains("KML")) {
+        boolean kmz = KMLReader.isKmz(file);
+        if (kmz || file.getName().toLowerCase(Locale.ROOT).endsWith(".kml")) {
             KMLReader kml = new KMLReader(file);
             kml.process();
             JOptionPane.showMessageDialog(null, tr("KML calibration is in beta stage and may produce incorrectly calibrated layers!\n" +
                             "Please use {0} to upload your KMLs that were calibrated incorrectly.",
                     "https://josm.openstreetmap.de/ticket/5451"), tr("Notification"), JOptionPane.INFORMATION_MESSAGE);
-            List<KMLGroundOverlay> overlays = kml.getGroundOverlays();
-            if (!overlays.isEmpty()) {
-                layer = new PicLayerFromKML(file, overlays.get(0));
+            if (kmz) {
+                layer = loadKmzOverlay(file, kml, zipEntry, overlayLink);
+            } else {
+                KMLGroundOverlay overlay = findOverlay(kml.getGroundOverlays(), overlayLink);
+                if (overlay != null) {
+                    layer = new PicLayerFromKML(file, overlay);
+                }
+            }
+            if (layer != null) {
                 layer.initialize();
             }
+        } else if (zipEntry != null) {
+            ZipIndex.Entry entry = ZipIndex.read(file).getImage(zipEntry);
+            if (entry == null) {
+                throw new IllegalDataException(tr("Picture ''{0}'' not found in ''{1}''", zipEntry, file.getName()));
+            }
+            layer = new PicLayerFromFile(file, entry);
+            layer.initialize();
         } else {
             layer = new PicLayerFromFile(file);
             layer.initialize();
@@ -93,6 +117,43 @@ public class PicLayerSessionImporter implements SessionLayerImporter {
         return layer;
     }
 
+    /**
+     * Rebuilds the layer of a ground overlay of a KMZ archive.
+     *
+     * @param kmz         the KMZ archive
+     * @param kml         the reader of the archive, after processing
+     * @param zipEntry    the picture of the layer in the archive, {@code null} for sessions written without it
+     * @param overlayLink the link of the ground overlay, {@code null} for sessions written without it
+     * @return the layer, not initialized
+     * @throws IOException if the archive can not be read
+     * @throws IllegalDataException if the archive does not contain the picture or its ground overlay any more
+     */
+    private static PicLayerFromKML loadKmzOverlay(File kmz, KMLReader kml, String zipEntry, String overlayLink)
+            throws IOException, IllegalDataException {
+        ZipIndex index = ZipIndex.read(kmz);
+        for (KMLGroundOverlay overlay : kml.getGroundOverlays()) {
+            ZipIndex.Entry entry = PicLayerFromKML.findPicture(index, kml.getDocumentName(), overlay);
+            if (entry != null && (zipEntry == null || zipEntry.equals(entry.getName()))
+                    && (overlayLink == null || overlayLink.equals(overlay.getFileName()))) {
+                return new PicLayerFromKML(kmz, entry, overlay);
+            }
+        }
+        throw new IllegalDataException(tr("Picture ''{0}'' not found in ''{1}''",
+                zipEntry != null ? zipEntry : overlayLink, kmz.getName()));
+    }
+
+    /**
+     * Returns the ground overlay with the given link, or the first one for sessions written without the link.
+     */
+    private static KMLGroundOverlay findOverlay(List<KMLGroundOverlay> overlays, String overlayLink) {
+        for (KMLGroundOverlay overlay : overlays) {
+            if (overlayLink == null || overlayLink.equals(overlay.getFileName())) {
+                return overlay;
+            }
+        }
+        return null;
+    }
+
     private static void handleElement(GpxImageEntry entry, Element attrElem) {
         try {
             switch (attrElem.getTagName()) {
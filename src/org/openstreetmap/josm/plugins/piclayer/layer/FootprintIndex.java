@@ -0,0 +1,167 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.openstreetmap.josm.data.ProjectionBounds;
+
+/**
+ * Read-only R-tree of the footprints of pictures, in east/north coordinates.
+ * <p>
+ * The tree is packed in one pass with the Sort-Tile-Recursive algorithm: the boxes are
+ * sorted into vertical slices by the east of their center, then by the north of their
+ * center within each slice, and grouped by {@link #NODE_SIZE}. The same is done for the
+ * nodes of each level until a single root is left. Footprints rarely change, the tree is
+ * rebuilt when they do.
+ *
+ * @param <T> the type of the indexed items
+ */
+final class FootprintIndex<T> {
+
+    // Maximum number of children of a node
+    private static final int NODE_SIZE = 16;
+
+    private static final class Node {
+        private final double minEast;
+        private final double minNorth;
+        private final double maxEast;
+        private final double maxNorth;
+        // Children for inner nodes, null for leaves
+        private final Node[] children;
+        // Item index for leaves
+        private final int item;
+
+        Node(ProjectionBounds b, int item) {
+            this.minEast = b.minEast;
+            this.minNorth = b.minNorth;
+            this.maxEast = b.maxEast;
+            this.maxNorth = b.maxNorth;
+            this.children = null;
+            this.item = item;
+        }
+
+        Node(Node[] children) {
+            double e0 = Double.POSITIVE_INFINITY;
+            double n0 = Double.POSITIVE_INFINITY;
+            double e1 = Double.NEGATIVE_INFINITY;
+            double n1 = Double.NEGATIVE_INFINITY;
+            for (Node c : children) {
+                e0 = Math.min(e0, c.minEast);
+                n0 = Math.min(n0, c.minNorth);
+                e1 = Math.max(e1, c.maxEast);
+                n1 = Math.max(n1, c.maxNorth);
+            }
+            this.minEast = e0;
+            this.minNorth = n0;
+            this.maxEast = e1;
+            this.maxNorth = n1;
+            this.children = children;
+            this.item = -1;
+        }
+
+        boolean intersects(double e0, double n0, double e1, double n1) {
+            return minEast <= e1 && maxEast >= e0 && minNorth <= n1 && maxNorth >= n0;
+        }
+
+        double centerEast() {
+            return (minEast + maxEast) / 2;
+        }
+
+        double centerNorth() {
+            return (minNorth + maxNorth) / 2;
+        }
+    }
+
+    private final List<T> items;
+    private final Node root;
+
+    /**
+     * Builds the index.
+     *
+     * @param items  the items
+     * @param bounds the footprint of each item, in the same order
+     */
+    FootprintIndex(List<T> items, List<ProjectionBounds> bounds) {
+        this.items = new ArrayList<>(items);
+        List<Node> level = new ArrayList<>(items.size());
+        for (int i = 0; i < items.size(); i++) {
+            level.add(new Node(bounds.get(i), i));
+        }
+        while (level.size() > 1) {
+            level = pack(level);
+        }
+        root = level.isEmpty() ? null : level.get(0);
+    }
+
+    private static List<Node> pack(List<Node> nodes) {
+        int parents = (nodes.size() + NODE_SIZE - 1) / NODE_SIZE;
+        int slices = (int) Math.ceil(Math.sqrt(parents));
+        int sliceSize = slices * NODE_SIZE;
+        List<Node> sorted = new ArrayList<>(nodes);
+        sorted.sort(Comparator.comparingDouble(Node::centerEast));
+        List<Node> packed = new ArrayList<>(parents);
+        for (int s = 0; s < sorted.size(); s += sliceSize) {
+            List<Node> slice = sorted.subList(s, Math.min(s + sliceSize, sorted.size()));
+            slice.sort(Comparator.comparingDouble(Node::centerNorth));
+            for (int i = 0; i < slice.size(); i += NODE_SIZE) {
+                packed.add(new Node(slice.subList(i, Math.min(i + NODE_SIZE, slice.size())).toArray(new Node[0])));
+            }
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the items whose footprint intersects a box.
+     *
+     * @param box the box, in east/north coordinates
+     * @return the items, in the order they were given to the index
+     */
+    List<T> query(ProjectionBounds box) {
+        if (root == null) {
+            return Collections.emptyList();
+        }
+        int[] found = new int[16];
+        int count = 0;
+        Node[] stack = new Node[64];
+        int top = 0;
+        stack[top++] = root;
+        while (top > 0) {
+            Node node = stack[--top];
+            if (!node.intersects(box.minEast, box.minNorth, box.maxEast, box.maxNorth)) {
+                continue;
+            }
+            if (node.children == null) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = node.item;
+            } else {
+                if (top + node.children.length > stack.length) {
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + node.children.length));
+                }
+                for (Node child : node.children) {
+                    stack[top++] = child;
+                }
+            }
+        }
+        Arrays.sort(found, 0, count);
+        List<T> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(items.get(found[i]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of indexed items.
+     *
+     * @return the size of the index
+     */
+    int size() {
+        return items.size();
+    }
+}
@@ -7,6 +7,14 @@ import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DirectColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -16,11 +24,14 @@ import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.Action;
 import javax.swing.Icon;
 import javax.swing.ImageIcon;
+import javax.swing.Timer;
 
 import org.openstreetmap.josm.actions.RenameLayerAction;
 import org.openstreetmap.josm.data.Bounds;
@@ -35,15 +46,28 @@ import org.openstreetmap.josm.gui.MapView;
 import org.openstreetmap.josm.gui.MapViewState;
 import org.openstreetmap.josm.gui.layer.Layer;
 import org.openstreetmap.josm.gui.layer.geoimage.ImageEntry;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.gui.util.GuiHelper;
 import org.openstreetmap.josm.plugins.piclayer.actions.LoadPictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.LoadPictureCalibrationFromWorldAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.ResetCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.SavePictureCalibrationToWorldAction;
 import org.openstreetmap.josm.plugins.piclayer.actions.autocalibrate.utils.GeoLine;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.BackgroundRenderer;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImagePyramid;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ParallelAffineResampler;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.PyramidDiskCache;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.RegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.TileStore;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.WholeImageSource;
 import org.openstreetmap.josm.plugins.piclayer.transform.PictureTransform;
+import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.JosmDecimalFormatSymbolsProvider;
 import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 /**
  * Base class for layers showing images. Actually it does all the showing. The
@@ -53,6 +77,26 @@ import org.openstreetmap.josm.tools.Logging;
  */
 public abstract class PicLayerAbstract extends Layer {
 
+    // Preference: render the picture in a worker thread instead of the EDT
+    private static final String PREF_BACKGROUND_RENDERING = "piclayer.render.background";
+
+    // Preference: maximum number of pixels of the picture shown while it is being dragged
+    private static final String PREF_PROXY_PIXELS = "piclayer.proxy.max-pixels";
+    // Preference: interpolation used while the picture is being dragged, "nearest" or "bilinear"
+    private static final String PREF_PROXY_INTERPOLATION = "piclayer.proxy.interpolation";
+    // Preference: resample the picture with the parallel resampler instead of Java2D
+    private static final String PREF_PARALLEL_RESAMPLING = "piclayer.render.parallel";
+    // Delay between the end of a drag and the full quality rendering, in milliseconds
+    private static final int REFINE_DELAY = 300;
+    // Preference: pictures with more pixels are loaded as an overview, full resolution regions are decoded on demand
+    private static final String PREF_MAX_FULL_PIXELS = "piclayer.decode.max-full-pixels";
+    // Preference: maximum number of pixels of the overview of a large picture
+    private static final String PREF_OVERVIEW_PIXELS = "piclayer.decode.overview-pixels";
+    // Preference: size on screen, in pixels, from which a layer loaded on demand is decoded
+    private static final String PREF_LAZY_MIN_SIZE = "piclayer.lazy.min-size";
+    // Preference: keep the pyramid levels as compressed tiles, decompressing only the painted ones
+    private static final String PREF_COMPRESS_TILES = "piclayer.memory.compress-tiles";
+
     // Keys for loading from old/new Properties
     private static final String POSITION_X = "POSITION_X";
     private static final String POSITION_Y = "POSITION_Y";
@@ -73,8 +117,62 @@ public abstract class PicLayerAbstract extends Layer {
     // Counter - just for naming of layers
     private static int imageCounter;
 
-    // This is the main image to be displayed
-    protected Image image;
+    // This is the main image to be displayed, null while the layer is a placeholder being loaded.
+    // For large pictures, this is only a subsampled overview, see getImageWidth()
+    protected volatile Image image;
+    // Size of the picture at full resolution
+    private int imageWidth;
+    private int imageHeight;
+
+    // Set by readPicture() when only an overview of the picture is loaded
+    private RegionDecoder regionDecoder;
+    private int overviewLevel;
+    // Set by readPicture(): levels read from the disk cache, or picture file to cache once decoded
+    private List<TileStore> cachedLevels;
+    private File cacheSource;
+
+    // Downscaled versions of the image, used when zoomed out
+    private volatile ImagePyramid pyramid;
+    // Set by the RasterMemoryManager when only the preview of the picture is kept
+    private volatile boolean released;
+    private final AtomicBoolean reloading = new AtomicBoolean();
+    private volatile boolean destroyed;
+    // Whether the picture was near the map view at the last paint, and when it was last painted there
+    private volatile boolean onScreen;
+    private volatile long lastPainted;
+
+    // Transforms between the map view and the picture, see getViewTransform()
+    private ViewTransform viewTransform;
+    // Meters per east/north unit at the image position, computed for metersPerUnitPosition
+    private EastNorth metersPerUnitPosition;
+    private double metersPerEasting;
+    private double metersPerNorthing;
+
+    // Renders the picture outside of the EDT, if enabled
+    private volatile BackgroundRenderer renderer;
+
+    /**
+     * Rendering quality, lowered while the picture is transformed interactively.
+     */
+    private enum RenderQuality {
+        /** low resolution proxy and cheap interpolation, while dragging */
+        PROXY,
+        /** matching resolution but bilinear interpolation, right after dragging */
+        DRAFT,
+        /** matching resolution and bicubic interpolation */
+        FULL
+    }
+
+    private volatile RenderQuality quality = RenderQuality.FULL;
+    private Timer refineTimer;
+
+    // Color model of the buffers of drawResampled()
+    private static final DirectColorModel ARGB_PRE = new DirectColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+            32, 0xff0000, 0xff00, 0xff, 0xff000000, true, DataBuffer.TYPE_INT);
+    // Pixels of drawResampled(), reused from one paint to the next, guarded by resampleLock
+    private final Object resampleLock = new Object();
+    private int[] resampleSource;
+    private int[] resampleTarget;
 
     // Tiles of pin images
     private static Image pinTiledImage;
@@ -145,13 +243,32 @@ public abstract class PicLayerAbstract extends Layer {
     /**
      * Initializes the image. Gets the image from a subclass and stores some
      * initial parameters. Throws exception if something fails.
+     * <p>
+     * This runs {@link #initializePosition()}, {@link #loadImage(ProgressMonitor)}
+     * and {@link #finishLoading()} one after the other in the calling thread.
      *
      * @throws IOException in case of error
      */
     public void initialize() throws IOException {
+        initializePosition();
+        loadImage(NullProgressMonitor.INSTANCE);
+        finishLoading();
+    }
+
+    /**
+     * First step of the initialization: places the picture at the center of the map view.
+     * Must be called in the EDT. Afterwards the layer can be added to the map as a
+     * placeholder, it shows nothing until the image is loaded.
+     *
+     * @throws IOException if there is no map view
+     */
+    public void initializePosition() throws IOException {
         // First, we initialize the calibration, so that createImage() can rely on it
 
-        if (transformer == null) transformer = new PictureTransform();
+        if (transformer == null) {
+            transformer = new PictureTransform();
+            transformer.addPropertyChangeListener(e -> invalidateViewTransform());
+        }
 
         // If the map does not exist - we're screwed. We should not get into this situation in the first place!
         if (MainApplication.getMap() != null && MainApplication.getMap().mapView != null) {
@@ -164,31 +281,369 @@ public abstract class PicLayerAbstract extends Layer {
         } else {
             throw new IOException(tr("Could not find the map object."));
         }
+    }
+
+    /**
+     * Second step of the initialization: creates the image and reads its calibration files.
+     * Can be called outside of the EDT.
+     *
+     * @param monitor the progress monitor, decoding is aborted when it is canceled
+     * @throws java.io.InterruptedIOException if the monitor was canceled
+     * @throws IOException in case of error
+     */
+    public void loadImage(ProgressMonitor monitor) throws IOException {
+        // Read the calibration files while we are off the EDT, lookForCalibration() only applies them
+        readCalibration();
 
         // Create image
-        image = createImage();
+        buildPyramid(readPicture(monitor));
+        lastPainted = System.nanoTime();
+        RasterMemoryManager.register(this);
+        pictureChanged();
+    }
+
+    /**
+     * Reads the size of the picture and its calibration files, without decoding the pixels,
+     * so that the footprint of the layer is known before its picture is loaded.
+     * Can be called outside of the EDT, before {@link #loadImage(ProgressMonitor)}.
+     *
+     * @return {@code true} if the size of the picture is known
+     * @throws IOException in case of error
+     */
+    public boolean probe() throws IOException {
+        readCalibration();
+        Dimension size = probeImageSize();
+        if (size == null || size.width <= 0 || size.height <= 0) {
+            return false;
+        }
         if (image == null) {
+            imageWidth = size.width;
+            imageHeight = size.height;
+        }
+        return true;
+    }
+
+    /**
+     * To be overridden by subclasses. Reads the size of the picture from its header only.
+     * Returns {@code null} by default.
+     *
+     * @return the size of the picture at full resolution, or {@code null} if it can not be read cheaply
+     * @throws IOException in case of error
+     */
+    protected Dimension probeImageSize() throws IOException {
+        return null;
+    }
+
+    /**
+     * Builds the pyramid of a picture read by {@link #readPicture(ProgressMonitor)}.
+     */
+    private void buildPyramid(BufferedImage bi) throws IOException {
+        // The decoder now belongs to the pyramid
+        RegionDecoder decoder = regionDecoder;
+        regionDecoder = null;
+        if (decoder != null) {
+            imageWidth = decoder.getWidth();
+            imageHeight = decoder.getHeight();
+        } else if (cachedLevels != null) {
+            imageWidth = cachedLevels.get(0).getWidth();
+            imageHeight = cachedLevels.get(0).getHeight();
+        } else {
+            imageWidth = bi.getWidth();
+            imageHeight = bi.getHeight();
+        }
+        if (cachedLevels != null) {
+            List<TileStore> stored = cachedLevels;
+            cachedLevels = null;
+            pyramid = new ImagePyramid(stored, overviewLevel, imageWidth, imageHeight, decoder, this::pictureChanged);
+        } else {
+            pyramid = new ImagePyramid(bi, overviewLevel, imageWidth, imageHeight, decoder, this::pictureChanged);
+            File source = cacheSource;
+            if (source != null) {
+                int w = imageWidth;
+                int h = imageHeight;
+                int first = overviewLevel;
+                pyramid.whenComplete(levels -> PyramidDiskCache.write(source, w, h, first, levels));
+            }
+        }
+        if (Config.getPref().getBoolean(PREF_COMPRESS_TILES, false)) {
+            pyramid.compressLevels();
+        }
+        // Keep the compacted pixels only
+        image = pyramid.getPreview();
+    }
+
+    /**
+     * Tells whether the picture can be created again by {@link #createImageSource(ProgressMonitor)}, so that
+     * its pixels can be released when memory is short. {@code false} by default.
+     *
+     * @return {@code true} if the picture comes from a source that can be read again
+     */
+    protected boolean canReloadImage() {
+        return false;
+    }
+
+    /**
+     * Tells whether the pixels of this layer can be released by {@link #releasePixels()}.
+     *
+     * @return {@code true} if the picture is loaded, can be reloaded, and was not released yet
+     */
+    boolean canReleasePixels() {
+        return pyramid != null && !released && !destroyed && canReloadImage();
+    }
+
+    /**
+     * Releases the pixels of the picture, keeping only its preview. The picture is reloaded
+     * in the background as soon as it is painted at a finer resolution.
+     */
+    synchronized void releasePixels() {
+        ImagePyramid p = pyramid;
+        if (p == null || released || destroyed || !canReloadImage()) {
+            return;
+        }
+        BufferedImage preview = p.getPreview();
+        pyramid = new ImagePyramid(preview, p.getPreviewLevel(),
+                imageWidth, imageHeight, null, this::pictureChanged);
+        released = true;
+        p.cancel();
+        releaseResampleBuffers();
+        image = preview;
+        pictureChanged();
+    }
+
+    /**
+     * Marks a probed layer to be loaded on demand: its picture is decoded in the background the
+     * first time the layer is painted with its footprint inside the map view, large enough to be seen.
+     * To be called instead of {@link #loadImage(ProgressMonitor)}, after {@link #probe()}.
+     */
+    public void loadWhenVisible() {
+        if (pyramid == null && canReloadImage()) {
+            released = true;
+        }
+    }
+
+    /**
+     * Loads the pixels released by {@link #releasePixels()}, or not loaded yet because of
+     * {@link #loadWhenVisible()}. Called from a worker thread.
+     */
+    void reloadPixels() {
+        try {
+            if (!released || destroyed) {
+                return;
+            }
+            if (pyramid == null && !onScreen) {
+                // Scrolled away while waiting, loaded when it is visible again
+                return;
+            }
+            BufferedImage img = readPicture(NullProgressMonitor.INSTANCE);
+            synchronized (this) {
+                if (destroyed) {
+                    RegionDecoder decoder = regionDecoder;
+                    regionDecoder = null;
+                    if (decoder != null) {
+                        decoder.close();
+                    }
+                    cachedLevels = null;
+                    return;
+                }
+                ImagePyramid old = pyramid;
+                buildPyramid(img);
+                released = false;
+                if (old != null) {
+                    old.cancel();
+                }
+            }
+            lastPainted = System.nanoTime();
+            RasterMemoryManager.register(this);
+            pictureChanged();
+        } catch (IOException | RuntimeException e) {
+            Logging.warn(e);
+        } finally {
+            reloading.set(false);
+        }
+    }
+
+    /**
+     * Tells whether the picture was inside or near the map view when the layer was last painted.
+     *
+     * @return {@code true} if the picture was on screen, or at most one view size away
+     */
+    boolean isOnScreen() {
+        return onScreen;
+    }
+
+    /**
+     * Sets whether the picture is inside or near the map view, for the pictures of a
+     * {@link PicLayerMosaic}, which are only painted when they intersect the view.
+     *
+     * @param onScreen {@code true} if the picture is near the map view
+     */
+    void setOnScreen(boolean onScreen) {
+        this.onScreen = onScreen;
+        if (onScreen) {
+            lastPainted = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns when the picture was last painted inside the map view.
+     *
+     * @return the time, from {@link System#nanoTime()}, 0 if never painted
+     */
+    long getLastPainted() {
+        return lastPainted;
+    }
+
+    /**
+     * Reads the picture from the source created by {@link #createImageSource(ProgressMonitor)}.
+     * Pictures with more pixels than set by the {@code piclayer.decode.max-full-pixels} preference,
+     * or whose source prefers it, are only read as a subsampled overview if their source can read
+     * regions, the full resolution regions are then read on demand when zooming in.
+     * <p>
+     * Large enough picture files are read from the {@link PyramidDiskCache} if they were decoded before,
+     * and written to it otherwise. The cached levels are mapped, not read.
+     *
+     * @param monitor the progress monitor
+     * @return the picture or its overview, {@code null} if the levels were found in the cache
+     * @throws IOException in case of error
+     */
+    private BufferedImage readPicture(ProgressMonitor monitor) throws IOException {
+        ImageSource source = createImageSource(monitor);
+        if (source == null) {
             throw new IOException(tr("PicLayer failed to load or import the image."));
         }
-        // Load image completely
-        new ImageIcon(image).getImage();
+        boolean keepSource = false;
+        try {
+            int w = source.getWidth();
+            int h = source.getHeight();
+            int level = 0;
+            if (source.canReadRegions() && (source.prefersRegions()
+                    || (long) w * h > Config.getPref().getLong(PREF_MAX_FULL_PIXELS, 50_000_000L))) {
+                level = ImagePyramid.levelForPixels(w, h, Config.getPref().getLong(PREF_OVERVIEW_PIXELS, 4_000_000L));
+            }
+            overviewLevel = level;
+            this.cacheSource = null;
+
+            BufferedImage overview;
+            File cacheFile = source.getFile();
+            // Internal overviews are as fast to read as the cache
+            boolean useCache = cacheFile != null && PyramidDiskCache.isEnabled(w, h) && source.getLevelCount() == 1;
+            List<TileStore> cached = useCache ? PyramidDiskCache.read(cacheFile, w, h, level) : null;
+            if (cached != null) {
+                cachedLevels = cached;
+                overview = null;
+            } else {
+                overview = source.readLevel(level, monitor);
+                if (useCache) {
+                    this.cacheSource = cacheFile;
+                }
+            }
+            if (level > 0) {
+                regionDecoder = source;
+                keepSource = true;
+            }
+            return overview;
+        } finally {
+            if (!keepSource) {
+                source.close();
+            }
+        }
+    }
 
+    /**
+     * Last step of the initialization: looks for a calibration of the loaded image.
+     * Must be called in the EDT, as it may ask the user.
+     *
+     * @throws IOException in case of error
+     */
+    public void finishLoading() throws IOException {
         lookForCalibration();
     }
 
     /**
-     * To be overridden by subclasses. Provides an image from an external sources.
+     * Called when the pixels to display changed, e.g. when a pyramid level became available.
+     * May be called from any thread.
+     */
+    protected void pictureChanged() {
+        ImagePyramid p = pyramid;
+        if (p != null && image != null) {
+            // Do not keep the finer levels alive once they are compressed
+            image = p.getPreview();
+            RasterMemoryManager.requestCheck();
+        }
+        BackgroundRenderer r = renderer;
+        if (r != null) {
+            r.contentChanged();
+        }
+        GuiHelper.runInEDT(this::invalidate);
+    }
+
+    /**
+     * Provides an image from an external sources.
      * Throws exception if something does not work.
      * <p>
+     * Subclasses override either this method or {@link #createImageSource(ProgressMonitor)}:
+     * the default implementation reads the whole picture at full resolution from
+     * {@link #createImageSource(ProgressMonitor)}, whose default implementation calls this method.
+     * <p>
      * TODO: Replace the IOException by our own exception.
      *
+     * @return created image, {@code null} if its format is not supported
+     * @throws IOException in case of error
+     */
+    protected Image createImage() throws IOException {
+        ImageSource source = createImageSource(NullProgressMonitor.INSTANCE);
+        if (source == null) {
+            return null;
+        }
+        try {
+            return source.readLevel(0, NullProgressMonitor.INSTANCE);
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Provides an image from an external source, reporting the progress to the given monitor.
+     * Subclasses able to report progress or to abort the loading override this method,
+     * the default implementation calls {@link #createImage()}.
+     *
+     * @param monitor the progress monitor
      * @return created image
      * @throws IOException in case of error
      */
-    protected abstract Image createImage() throws IOException;
+    protected Image createImage(ProgressMonitor monitor) throws IOException {
+        return createImage();
+    }
+
+    /**
+     * Provides the source of the pixels of the picture. Subclasses able to read regions or
+     * resolution levels without decoding the whole picture override this method, the default
+     * implementation wraps the image of {@link #createImage(ProgressMonitor)} in a {@link WholeImageSource}.
+     * <p>
+     * The source is closed by the layer, as soon as the picture is read or when the layer is destroyed.
+     *
+     * @param monitor the progress monitor
+     * @return the source, or {@code null} if the picture can not be read
+     * @throws IOException in case of error
+     */
+    protected ImageSource createImageSource(ProgressMonitor monitor) throws IOException {
+        Image img = createImage(monitor);
+        return img != null ? new WholeImageSource(img) : null;
+    }
 
     protected abstract void lookForCalibration() throws IOException;
 
+    /**
+     * Reads the calibration files associated to the picture, if any, so that
+     * {@link #lookForCalibration()} does not need to access the disk. Called in the
+     * loading thread, before the image is created. Does nothing by default.
+     *
+     * @throws IOException in case of error
+     */
+    protected void readCalibration() throws IOException {
+        // Nothing to read
+    }
+
     @Override
     public boolean isMergable(Layer arg0) {
         return false;
@@ -209,14 +664,59 @@ public abstract class PicLayerAbstract extends Layer {
         return this.image;
     }
 
+    /**
+     * Returns the width of the picture at full resolution, which can be larger than
+     * the width of {@link #getImage()} for large pictures.
+     *
+     * @return the width, in pixels
+     */
+    public int getImageWidth() {
+        return imageWidth;
+    }
+
+    /**
+     * Returns the height of the picture at full resolution, which can be larger than
+     * the height of {@link #getImage()} for large pictures.
+     *
+     * @return the height, in pixels
+     */
+    public int getImageHeight() {
+        return imageHeight;
+    }
+
     @Override
     public Icon getIcon() {
         return layerIcon;
     }
 
+    /**
+     * Returns the pixel layout of the picture in memory.
+     *
+     * @return a short description of the layout, or {@code null} while the picture is being loaded
+     */
+    public String getPixelFormat() {
+        ImagePyramid p = pyramid;
+        return p != null ? p.getPixelFormat() : null;
+    }
+
+    /**
+     * Returns the memory used by the pixels of the picture, including its downscaled versions.
+     *
+     * @return the size in bytes, 0 while the picture is being loaded
+     */
+    public long getImageByteSize() {
+        ImagePyramid p = pyramid;
+        return p != null ? p.getByteSize() : 0;
+    }
+
     @Override
     public Object getInfoComponent() {
-        return null;
+        if (pyramid == null) {
+            return null;
+        }
+        return tr("Picture: {0} x {1} pixels", imageWidth, imageHeight) + "\n"
+                + tr("Pixel format: {0}", getPixelFormat()) + "\n"
+                + tr("Memory: {0}", Utils.getSizeString(getImageByteSize(), Locale.getDefault()));
     }
 
     @Override
@@ -295,40 +795,41 @@ public abstract class PicLayerAbstract extends Layer {
     @Override
     public void paint(Graphics2D g2, MapView mv, Bounds bounds) {
         if (image != null) {
-            // Position image at the right graphical place
-            EastNorth center = mv.getCenter();
-            EastNorth leftop = mv.getEastNorth(0, 0);
-            // Number of pixels for one unit in east north space.
-            // This is the same in x- and y- direction.
-            double pixelPerEn = (mv.getWidth() / 2.0) / (center.east() - leftop.east());
-
-            // This is now the offset in screen pixels
-            EastNorth imagePosition = transformer.getImagePosition();
-            double picOffsetX = ((imagePosition.east() - leftop.east()) * pixelPerEn);
-            double picOffsetY = ((leftop.north() - imagePosition.north()) * pixelPerEn);
-
-            Graphics2D g = (Graphics2D) g2.create();
-            // Move
-            g.translate(picOffsetX, picOffsetY);
-
-            // Scale
-            double scalex = initialImageScale * pixelPerEn / getMetersPerEasting(imagePosition) / 100;
-            double scaley = initialImageScale * pixelPerEn / getMetersPerNorthing(imagePosition) / 100;
-            g.scale(scalex, scaley);
-
-            g.transform(transformer.getTransform());
-
-            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            ViewTransform vt = getViewTransform(mv);
+            EastNorth leftop = vt.leftop;
+            double pixelPerEn = vt.pixelPerEn;
+            AffineTransform chain = vt.chain;
+
+            Rectangle2D picture = new Rectangle2D.Double(-getImageWidth() / 2.0, -getImageHeight() / 2.0,
+                    getImageWidth(), getImageHeight());
+            // Near the view: within one view size around it
+            onScreen = chain.createTransformedShape(picture).intersects(
+                    -mv.getWidth(), -mv.getHeight(), 3.0 * mv.getWidth(), 3.0 * mv.getHeight());
+            if (onScreen) {
+                lastPainted = System.nanoTime();
+            }
 
             // Draw picture
-            int width = image.getWidth(null);
-            int height = image.getHeight(null);
-            try {
-                g.drawImage(image, -width / 2, -height / 2, null);
-            } catch (RuntimeException e) {
-                Logging.error(e);
+            Rectangle clip = g2.getClipBounds();
+            if (clip == null) {
+                clip = new Rectangle(0, 0, mv.getWidth(), mv.getHeight());
+            }
+            if (Config.getPref().getBoolean(PREF_BACKGROUND_RENDERING, false)) {
+                if (renderer == null) {
+                    renderer = new BackgroundRenderer(this::paintPicture, () -> GuiHelper.runInEDT(this::invalidate));
+                }
+                renderer.request(new BackgroundRenderer.Request(leftop, pixelPerEn, mv.getWidth(), mv.getHeight(),
+                        g2.getTransform().getScaleX(), chain));
+                renderer.drawLatestFrame(g2, leftop, pixelPerEn);
+            } else {
+                paintPicture(g2, chain, clip);
             }
 
+            Graphics2D g = (Graphics2D) g2.create();
+            g.transform(chain);
+            int width = getImageWidth();
+            int height = getImageHeight();
+
             // Draw additional rectangle for the active pic layer
             if (mv.getLayerManager().getActiveLayer() == this) {
                 g.setColor(new Color(0xFF0000));
@@ -342,10 +843,9 @@ public abstract class PicLayerAbstract extends Layer {
 
             // AutoCalibration - Graphics setup for marker
             Graphics2D gPoints = (Graphics2D) g2.create();
-            gPoints.translate(picOffsetX, picOffsetY);
+            gPoints.translate(vt.picOffsetX, vt.picOffsetY);
             gPoints.setColor(Color.RED); // red color for points output
-            AffineTransform tr = AffineTransform.getScaleInstance(scalex, scaley);
-            tr.concatenate(transformer.getTransform());
+            AffineTransform tr = vt.scaled;
 
             // AutoCalibration - Draw markers and lines
             if (drawOriginMarkers) {
@@ -390,8 +890,291 @@ public abstract class PicLayerAbstract extends Layer {
                     drawMarkerImage(gPoints, pinTiledImageOrange, p2, 2);
                 }
             }
-        } else {
-            Logging.error("PicLayerAbstract::paint - general drawing error (image is null or Graphics not 2D");
+        } else if (getImageWidth() > 0 && getImageHeight() > 0) {
+            // Picture being loaded, its footprint is already known
+            Graphics2D g = (Graphics2D) g2.create();
+            try {
+                Rectangle2D picture = new Rectangle2D.Double(-getImageWidth() / 2.0, -getImageHeight() / 2.0,
+                        getImageWidth(), getImageHeight());
+                g.setColor(Color.GRAY);
+                g.setStroke(new BasicStroke(1f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10f, new float[] {6f, 6f}, 0f));
+                Shape footprint = getViewTransform(mv).chain.createTransformedShape(picture);
+                g.draw(footprint);
+
+                if (released) {
+                    // Loaded on demand, once visible
+                    Rectangle extent = footprint.getBounds();
+                    int minSize = Config.getPref().getInt(PREF_LAZY_MIN_SIZE, 16);
+                    onScreen = footprint.intersects(0, 0, mv.getWidth(), mv.getHeight())
+                            && Math.max(extent.width, extent.height) >= minSize;
+                    if (onScreen && reloading.compareAndSet(false, true)) {
+                        RasterMemoryManager.reload(this);
+                    }
+                }
+            } finally {
+                g.dispose();
+            }
+        }
+    }
+
+    /**
+     * Draws the picture with the given transform. Does not touch the map view,
+     * so that it can be called from a background renderer.
+     *
+     * @param g0    {@link Graphics2D}
+     * @param chain transform from the pixel space of the picture, centered on the picture, to view pixels
+     * @param clip  the area of the view to draw, in view pixels
+     */
+    private void paintPicture(Graphics2D g0, AffineTransform chain, Rectangle clip) {
+        Graphics2D g = (Graphics2D) g0.create();
+        try {
+            g.transform(chain);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, getInterpolation());
+
+            int width = getImageWidth();
+            int height = getImageHeight();
+            // Visible part of the picture, in pixels from its top left corner
+            Rectangle2D visible = chain.createInverse().createTransformedShape(clip).getBounds2D();
+            visible.setRect(visible.getX() + width / 2, visible.getY() + height / 2, visible.getWidth(), visible.getHeight());
+            Rectangle deviceClip = g0.getTransform().createTransformedShape(clip).getBounds();
+            // Read once: the memory manager replaces the pyramid while the picture is painted
+            drawPicture(g, pyramid, visible, deviceClip, width, height);
+        } catch (NoninvertibleTransformException | RuntimeException e) {
+            Logging.error(e);
+        } finally {
+            g.dispose();
+        }
+    }
+
+    private Object getInterpolation() {
+        switch (quality) {
+            case PROXY:
+                return "nearest".equals(Config.getPref().get(PREF_PROXY_INTERPOLATION, "bilinear"))
+                        ? RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR
+                        : RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+            case DRAFT:
+                return RenderingHints.VALUE_INTERPOLATION_BILINEAR;
+            default:
+                return RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+        }
+    }
+
+    private ParallelAffineResampler.Kernel getKernel() {
+        Object interpolation = getInterpolation();
+        if (interpolation == RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR) {
+            return ParallelAffineResampler.Kernel.NEAREST;
+        } else if (interpolation == RenderingHints.VALUE_INTERPOLATION_BILINEAR) {
+            return ParallelAffineResampler.Kernel.BILINEAR;
+        }
+        return ParallelAffineResampler.Kernel.BICUBIC;
+    }
+
+    /**
+     * Draws the visible part of a pyramid level with the {@link ParallelAffineResampler}
+     * instead of the Java2D pipeline. The resampling is done in device pixels.
+     *
+     * @param g          {@link Graphics2D}, with the user space of {@link #drawPicture}
+     * @param deviceClip visible area, in device pixels
+     * @param levelImage the pyramid level to draw
+     * @param visible    visible area, in full resolution pixels from the top left corner of the image
+     * @param fx         horizontal size of a level pixel, in full resolution pixels
+     * @param fy         vertical size of a level pixel, in full resolution pixels
+     * @param width      width of the full resolution image
+     * @param height     height of the full resolution image
+     * @throws NoninvertibleTransformException if the picture transform is degenerated
+     */
+    private void drawResampled(Graphics2D g, Rectangle deviceClip, BufferedImage levelImage, Rectangle2D visible,
+                               double fx, double fy, int width, int height) throws NoninvertibleTransformException {
+        // Visible part of the level, with a margin for the interpolation kernel
+        int x0 = Math.max(0, (int) Math.floor(visible.getMinX() / fx) - 2);
+        int y0 = Math.max(0, (int) Math.floor(visible.getMinY() / fy) - 2);
+        int x1 = Math.min(levelImage.getWidth(), (int) Math.ceil(visible.getMaxX() / fx) + 2);
+        int y1 = Math.min(levelImage.getHeight(), (int) Math.ceil(visible.getMaxY() / fy) + 2);
+        if (x1 <= x0 || y1 <= y0) {
+            return;
+        }
+
+        AffineTransform toDevice = g.getTransform();
+        toDevice.translate(-width / 2, -height / 2);
+        toDevice.scale(fx, fy);
+        toDevice.translate(x0, y0);
+        Rectangle dstRect = toDevice.createTransformedShape(new Rectangle(0, 0, x1 - x0, y1 - y0)).getBounds()
+                .intersection(deviceClip);
+        if (dstRect.isEmpty()) {
+            return;
+        }
+        AffineTransform dstToSrc = toDevice.createInverse();
+        dstToSrc.translate(dstRect.x, dstRect.y);
+
+        // The EDT and the background renderer may both paint the layer
+        synchronized (resampleLock) {
+            int sw = x1 - x0;
+            int sh = y1 - y0;
+            resampleSource = ensureCapacity(resampleSource, sw * sh);
+            resampleTarget = ensureCapacity(resampleTarget, dstRect.width * dstRect.height);
+            BufferedImage src = wrapPixels(resampleSource, sw, sh);
+            Graphics2D gs = src.createGraphics();
+            try {
+                // Replaces the pixels of the previous paint
+                gs.setComposite(AlphaComposite.Src);
+                gs.drawImage(levelImage, -x0, -y0, null);
+            } finally {
+                gs.dispose();
+            }
+            // All the pixels of the target are written
+            ParallelAffineResampler.resample(resampleSource, sw, sh, resampleTarget, dstRect.width, dstRect.height,
+                    dstToSrc, getKernel());
+
+            Graphics2D gd = (Graphics2D) g.create();
+            try {
+                gd.setTransform(new AffineTransform());
+                gd.drawImage(wrapPixels(resampleTarget, dstRect.width, dstRect.height), dstRect.x, dstRect.y, null);
+            } finally {
+                gd.dispose();
+            }
+        }
+    }
+
+    private static int[] ensureCapacity(int[] pixels, int size) {
+        return pixels != null && pixels.length >= size ? pixels : new int[size];
+    }
+
+    /**
+     * Wraps the first pixels of a buffer, which may be larger, in a picture of type {@link BufferedImage#TYPE_INT_ARGB_PRE}.
+     */
+    private static BufferedImage wrapPixels(int[] pixels, int w, int h) {
+        WritableRaster raster = Raster.createPackedRaster(new DataBufferInt(pixels, w * h), w, h, w,
+                ARGB_PRE.getMasks(), null);
+        return new BufferedImage(ARGB_PRE, raster, true, null);
+    }
+
+    /**
+     * Releases the buffers of {@link #drawResampled}, they are allocated again by the next paint.
+     */
+    private void releaseResampleBuffers() {
+        synchronized (resampleLock) {
+            resampleSource = null;
+            resampleTarget = null;
+        }
+    }
+
+    /**
+     * Switches to a low resolution proxy while the picture is transformed interactively.
+     * When switched off, the picture is refined progressively to full quality.
+     *
+     * @param interactive {@code true} at the start of a drag, {@code false} at its end
+     */
+    public void setInteractive(boolean interactive) {
+        if (refineTimer == null) {
+            refineTimer = new Timer(REFINE_DELAY, e -> {
+                quality = RenderQuality.FULL;
+                pictureChanged();
+            });
+            refineTimer.setRepeats(false);
+        }
+        if (interactive) {
+            refineTimer.stop();
+            quality = RenderQuality.PROXY;
+        } else if (quality == RenderQuality.PROXY) {
+            quality = RenderQuality.DRAFT;
+            pictureChanged();
+            refineTimer.restart();
+        }
+    }
+
+    /**
+     * Draws the visible tiles of the picture, using the pyramid level that best matches the current scale.
+     * The user space of {@code g} has to be the pixel space of the full resolution image, centered on the image.
+     *
+     * @param g          {@link Graphics2D}
+     * @param p          the pyramid of the picture, {@code null} to draw {@link #image}
+     * @param visible    visible area, in full resolution pixels from the top left corner of the image
+     * @param deviceClip visible area, in device pixels
+     * @param width      width of the full resolution image
+     * @param height     height of the full resolution image
+     * @throws NoninvertibleTransformException if the picture transform is degenerated
+     */
+    private void drawPicture(Graphics2D g, ImagePyramid p, Rectangle2D visible, Rectangle deviceClip, int width, int height)
+            throws NoninvertibleTransformException {
+        if (!visible.intersects(0, 0, width, height)) {
+            return;
+        }
+        if (p == null) {
+            g.drawImage(image, -width / 2, -height / 2, null);
+            return;
+        }
+        double scale = Math.sqrt(Math.abs(g.getTransform().getDeterminant()));
+        int level = p.chooseLevel(scale);
+        if (quality == RenderQuality.PROXY) {
+            level = Math.max(level, p.chooseLevelForPixels(Config.getPref().getLong(PREF_PROXY_PIXELS, 1_000_000)));
+        }
+        if (released && level < p.getFirstLevel() && reloading.compareAndSet(false, true)) {
+            RasterMemoryManager.reload(this);
+        }
+        level = p.requestLevel(level);
+
+        BufferedImage levelImage = p.isInMemory(level) ? p.getLevel(level) : null;
+        if (levelImage != null && Config.getPref().getBoolean(PREF_PARALLEL_RESAMPLING, false)) {
+            double fx = (double) width / levelImage.getWidth();
+            double fy = (double) height / levelImage.getHeight();
+            drawResampled(g, deviceClip, levelImage, visible, fx, fy, width, height);
+            return;
+        }
+        drawTiles(g, p, visible, level, width, height);
+    }
+
+    /**
+     * Draws the tiles of a pyramid level covering the visible area. Tiles that are still
+     * being decoded are replaced by the overview of the picture.
+     *
+     * @param g       {@link Graphics2D}, with the user space of {@link #drawPicture}
+     * @param p       the pyramid of the picture
+     * @param visible visible area, in full resolution pixels from the top left corner of the image
+     * @param level   the pyramid level, must be available
+     * @param width   width of the full resolution image
+     * @param height  height of the full resolution image
+     */
+    private void drawTiles(Graphics2D g, ImagePyramid p, Rectangle2D visible, int level, int width, int height) {
+        double fx = (double) width / p.getLevelWidth(level);
+        double fy = (double) height / p.getLevelHeight(level);
+
+        // Tile range covering the visible area in this level
+        int tileSize = ImagePyramid.TILE_SIZE;
+        int minCol = Math.max(0, (int) Math.floor(visible.getMinX() / fx / tileSize));
+        int minRow = Math.max(0, (int) Math.floor(visible.getMinY() / fy / tileSize));
+        int maxCol = Math.min(p.getTileColumns(level) - 1, (int) Math.floor(visible.getMaxX() / fx / tileSize));
+        int maxRow = Math.min(p.getTileRows(level) - 1, (int) Math.floor(visible.getMaxY() / fy / tileSize));
+        if (maxCol < minCol || maxRow < minRow) {
+            return;
+        }
+
+        BufferedImage[][] tiles = new BufferedImage[maxRow - minRow + 1][maxCol - minCol + 1];
+        boolean complete = true;
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int col = minCol; col <= maxCol; col++) {
+                BufferedImage tile = p.getTile(level, col, row);
+                tiles[row - minRow][col - minCol] = tile;
+                complete &= tile != null;
+            }
+        }
+        if (!complete && level != p.getFirstLevel()) {
+            drawTiles(g, p, visible, p.getFirstLevel(), width, height);
+        }
+
+        Graphics2D gl = (Graphics2D) g.create();
+        try {
+            gl.translate(-width / 2, -height / 2);
+            gl.scale(fx, fy);
+            for (int row = minRow; row <= maxRow; row++) {
+                for (int col = minCol; col <= maxCol; col++) {
+                    BufferedImage tile = tiles[row - minRow][col - minCol];
+                    if (tile != null) {
+                        gl.drawImage(tile, col * tileSize, row * tileSize, null);
+                    }
+                }
+            }
+        } finally {
+            gl.dispose();
         }
     }
 
@@ -492,7 +1275,8 @@ public abstract class PicLayerAbstract extends Layer {
      */
     @Override
     public void visitBoundingBox(BoundingXYVisitor arg0) {
-        if (image == null)
+        // The size is known once the picture is probed, before it is loaded
+        if (getImageWidth() <= 0 || getImageHeight() <= 0)
             return;
         String projcode = projection.toCode();
 
@@ -506,8 +1290,8 @@ public abstract class PicLayerAbstract extends Layer {
             return;
 
         EastNorth center = transformer.getImagePosition();
-        double w = image.getWidth(null);
-        double h = image.getHeight(null);
+        double w = getImageWidth();
+        double h = getImageHeight();
         double diagPix = Math.sqrt(w * w + h * h);
 
         // initialImageScale is a the scale (unit: m/100pix) at creation time
@@ -602,7 +1386,7 @@ public abstract class PicLayerAbstract extends Layer {
             transform = new AffineTransform(matrix);
         }
         transformer.resetCalibration();
-        transformer.getTransform().concatenate(transform);
+        transformer.concatenateTransform(transform);
 
         // Refresh
         invalidate();
@@ -622,27 +1406,36 @@ public abstract class PicLayerAbstract extends Layer {
                 }
                 e[i] = JosmDecimalFormatSymbolsProvider.parseDouble(line);
             }
-            double sx = e[0], ry = e[1], rx = e[2], sy = e[3], dx = e[4], dy = e[5];
-            int w = image.getWidth(null);
-            int h = image.getHeight(null);
-            EastNorth imagePosition = new EastNorth(
-                    dx + w / 2 * sx + h / 2 * rx,
-                    dy + w / 2 * ry + h / 2 * sy
-            );
-            double scalex = 100 * sx * getMetersPerEasting(imagePosition);
-            double scaley = -100 * sy * getMetersPerNorthing(imagePosition);
-            double shearx = rx / sx;
-            double sheary = ry / sy;
+            loadWorldFile(e);
+        }
+    }
 
-            transformer.setImagePosition(imagePosition);
-            transformer.resetCalibration();
-            AffineTransform tr = transformer.getTransform();
-            tr.scale(scalex, scaley);
-            tr.shear(shearx, sheary);
+    /**
+     * Calibrates the picture with the six parameters of a world file.
+     *
+     * @param e the pixel sizes, rotation terms and center of the upper left pixel, in world file order
+     */
+    public void loadWorldFile(double[] e) {
+        double sx = e[0], ry = e[1], rx = e[2], sy = e[3], dx = e[4], dy = e[5];
+        int w = getImageWidth();
+        int h = getImageHeight();
+        EastNorth imagePosition = new EastNorth(
+                dx + w / 2 * sx + h / 2 * rx,
+                dy + w / 2 * ry + h / 2 * sy
+        );
+        double scalex = 100 * sx * getMetersPerEasting(imagePosition);
+        double scaley = -100 * sy * getMetersPerNorthing(imagePosition);
+        double shearx = rx / sx;
+        double sheary = ry / sy;
 
-            initialImageScale = 1;
-            invalidate();
-        }
+        transformer.setImagePosition(imagePosition);
+        transformer.resetCalibration();
+        AffineTransform tr = AffineTransform.getScaleInstance(scalex, scaley);
+        tr.shear(shearx, sheary);
+        transformer.concatenateTransform(tr);
+
+        initialImageScale = 1;
+        invalidate();
     }
 
     public void saveWorldFile(double[] values) {
@@ -650,8 +1443,8 @@ public abstract class PicLayerAbstract extends Layer {
         transformer.getTransform().getMatrix(matrix);
         double a00 = matrix[0], a01 = matrix[2], a02 = matrix[4];
         double a10 = matrix[1], a11 = matrix[3], a12 = matrix[5];
-        int w = image.getWidth(null);
-        int h = image.getHeight(null);
+        int w = getImageWidth();
+        int h = getImageHeight();
         EastNorth imagePosition = transformer.getImagePosition();
         // piclayer calibration stores 9 parameters
         // worldfile has 6 parameters
@@ -674,29 +1467,63 @@ public abstract class PicLayerAbstract extends Layer {
     }
 
     public Point2D transformPoint(Point2D p) throws NoninvertibleTransformException {
-        // Position image at the right graphical place
+        return getViewTransform(MainApplication.getMap().mapView).getInverse().transform(p, null);
+    }
 
-        EastNorth center = MainApplication.getMap().mapView.getCenter();
-        EastNorth leftop = MainApplication.getMap().mapView.getEastNorth(0, 0);
+    /**
+     * Returns the transforms between the given map view and the picture. They are cached
+     * until the view state, the projection or the picture calibration change.
+     *
+     * @param mv the map view
+     * @return the transforms for the current state of {@code mv}
+     */
+    private ViewTransform getViewTransform(MapView mv) {
+        MapViewState state = mv.getState();
+        ViewTransform vt = viewTransform;
+        if (vt != null && vt.state == state && vt.initialImageScale == initialImageScale) {
+            return vt;
+        }
+
+        // Position image at the right graphical place
+        EastNorth center = mv.getCenter();
+        EastNorth leftop = mv.getEastNorth(0, 0);
         // Number of pixels for one unit in east north space.
         // This is the same in x- and y- direction.
-        double pixelPerEn = (MainApplication.getMap().mapView.getWidth() / 2.0) / (center.east() - leftop.east());
-
-        EastNorth imageCenter = transformer.getImagePosition();
-        //     This is now the offset in screen pixels
-        double picOffsetX = ((imageCenter.east() - leftop.east()) * pixelPerEn);
-        double picOffsetY = ((leftop.north() - imageCenter.north()) * pixelPerEn); // something bad...
-
-        AffineTransform pointTrans = AffineTransform.getTranslateInstance(picOffsetX, picOffsetY);
-
-        double scalex = initialImageScale * pixelPerEn / getMetersPerEasting(imageCenter) / 100;
-        double scaley = initialImageScale * pixelPerEn / getMetersPerNorthing(imageCenter) / 100;
+        double pixelPerEn = (mv.getWidth() / 2.0) / (center.east() - leftop.east());
 
-        pointTrans.scale(scalex, scaley); // ok here
+        // This is now the offset in screen pixels
+        EastNorth imagePosition = transformer.getImagePosition();
+        double picOffsetX = ((imagePosition.east() - leftop.east()) * pixelPerEn);
+        double picOffsetY = ((leftop.north() - imagePosition.north()) * pixelPerEn);
+
+        // Scale
+        if (metersPerUnitPosition != imagePosition) {
+            metersPerEasting = getMetersPerEasting(imagePosition);
+            metersPerNorthing = getMetersPerNorthing(imagePosition);
+            metersPerUnitPosition = imagePosition;
+        }
+        double scalex = initialImageScale * pixelPerEn / metersPerEasting / 100;
+        double scaley = initialImageScale * pixelPerEn / metersPerNorthing / 100;
+        AffineTransform scaled = AffineTransform.getScaleInstance(scalex, scaley);
+        scaled.concatenate(transformer.getTransform());
+
+        vt = new ViewTransform(state, initialImageScale, leftop, pixelPerEn, picOffsetX, picOffsetY, scaled);
+        viewTransform = vt;
+        return vt;
+    }
 
-        pointTrans.concatenate(transformer.getTransform());
+    /**
+     * Drops the cached transforms between the map view and the picture.
+     */
+    private void invalidateViewTransform() {
+        viewTransform = null;
+    }
 
-        return pointTrans.inverseTransform(p, null);
+    @Override
+    public void projectionChanged(Projection oldValue, Projection newValue) {
+        super.projectionChanged(oldValue, newValue);
+        metersPerUnitPosition = null;
+        invalidateViewTransform();
     }
 
     /**
@@ -804,6 +1631,23 @@ public abstract class PicLayerAbstract extends Layer {
         refLine2To3 = null;
     }
 
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        destroyed = true;
+        RasterMemoryManager.unregister(this);
+        if (pyramid != null) {
+            pyramid.cancel();
+        }
+        if (renderer != null) {
+            renderer.dispose();
+        }
+        releaseResampleBuffers();
+        if (refineTimer != null) {
+            refineTimer.stop();
+        }
+    }
+
     public void resetMarkersAndUsabilityValues() {
         resetDrawReferencePoints();
         resetDrawLines();
@@ -9,36 +9,91 @@ import java.awt.datatransfer.DataFlavor;
 import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ByteBufferImageInputStream;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.FileRegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.WholeImageSource;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
 
 /**
  * Layer displaying a picture copied from the clipboard.
+ * <p>
+ * The clipboard contents are taken when the layer is created. The picture itself is fetched
+ * when it is loaded, preferably as the encoded PNG or BMP bytes, which are decoded directly
+ * instead of going through the AWT {@link DataFlavor#imageFlavor} conversion.
  */
 public class PicLayerFromClipboard extends PicLayerAbstract {
 
+    // Encoded picture formats, by order of preference
+    private static final List<String> IMAGE_MIME_TYPES = Arrays.asList(
+            "image/png", "image/x-png", "image/bmp", "image/x-bmp", "image/jpeg");
+
+    private final Transferable contents;
+
+    /**
+     * Constructor, taking the current contents of the system clipboard. Must be called in the EDT.
+     */
+    public PicLayerFromClipboard() {
+        this(Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param contents the clipboard contents, may be {@code null}
+     */
+    public PicLayerFromClipboard(Transferable contents) {
+        this.contents = contents;
+    }
+
     @Override
-    protected Image createImage() throws IOException {
-        // Return item
-        Image image = null;
-        // Access the clipboard
-        Transferable t = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
-        // Check result
-        if (t == null) {
+    protected ImageSource createImageSource(ProgressMonitor monitor) throws IOException {
+        if (contents == null) {
             throw new IOException(tr("Nothing in clipboard"));
         }
 
-        // TODO: Why is it so slow?
-        // Try to make it an image data
         try {
-            if (t.isDataFlavorSupported(DataFlavor.imageFlavor)) {
-                image = (Image) t.getTransferData(DataFlavor.imageFlavor);
+            // Raw bytes of an encoded picture: kept encoded, decoded once, without an intermediate AWT image
+            DataFlavor encoded = getEncodedImageFlavor(contents);
+            if (encoded != null) {
+                try (InputStream is = (InputStream) contents.getTransferData(encoded)) {
+                    byte[] bytes = Utils.readBytesFromStream(is);
+                    ImageSource source = FileRegionDecoder.open(new ByteBufferImageInputStream(ByteBuffer.wrap(bytes)));
+                    if (source != null) {
+                        return source;
+                    }
+                } catch (IOException e) {
+                    Logging.trace(e);
+                }
+            }
+            if (contents.isDataFlavorSupported(DataFlavor.imageFlavor)) {
+                return new WholeImageSource((Image) contents.getTransferData(DataFlavor.imageFlavor));
             } else {
                 throw new IOException(tr("The clipboard data is not an image"));
             }
         } catch (UnsupportedFlavorException e) {
-            throw new IOException(e.getMessage());
+            throw new IOException(e.getMessage(), e);
         }
+    }
 
-        return image;
+    private static DataFlavor getEncodedImageFlavor(Transferable t) {
+        DataFlavor best = null;
+        int bestRank = IMAGE_MIME_TYPES.size();
+        for (DataFlavor flavor : t.getTransferDataFlavors()) {
+            int rank = IMAGE_MIME_TYPES.indexOf(flavor.getPrimaryType() + '/' + flavor.getSubType());
+            if (rank >= 0 && rank < bestRank && flavor.isRepresentationClassInputStream()) {
+                best = flavor;
+                bestRank = rank;
+            }
+        }
+        return best;
     }
 
     @Override
@@ -3,20 +3,30 @@ package org.openstreetmap.josm.plugins.piclayer.layer;
 
 import static org.openstreetmap.josm.tools.I18n.tr;
 
-import java.awt.Image;
+import java.awt.Dimension;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
+import java.util.List;
+import java.util.Locale;
 
-import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.data.projection.ProjectionRegistry;
+import org.openstreetmap.josm.data.projection.Projections;
 import org.openstreetmap.josm.gui.MainApplication;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.FileRegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.GeoTiff;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.SvgImageSource;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
@@ -28,15 +38,39 @@ public class PicLayerFromFile extends PicLayerAbstract {
     // File to load from.
     private final File m_file;
 
+    // Image extensions, and the world file extensions to look for, for each of them
+    static final String[][] IMG_EXTENSIONS = new String[][]{
+            {".jpg", ".jpeg"},
+            {".png"},
+            {".tif", ".tiff"},
+            {".bmp"},
+    };
+    static final String[][] WLD_EXTENSIONS = new String[][]{
+            {".wld", ".jgw", ".jpgw"},
+            {".wld", ".pgw", ".pngw"},
+            {".wld", ".tfw", ".tifw"},
+            {".wld", ".bmpw", ".bpw"},
+    };
+
     // whether the file is a zip archive
     private boolean isZip;
-    // if so, what is the name of the image inside the archive?
-    private String imgNameInZip;
+    // if so, the image inside the archive, null until the archive is indexed
+    private ZipIndex.Entry zipEntry;
 
     // Tooltip text
     private final String m_tooltiptext;
 
     public PicLayerFromFile(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Constructs a layer for one of the images of a zip archive.
+     *
+     * @param file     the zip archive, or a picture file
+     * @param zipEntry the image in the archive, if {@code null} the first image of the archive is used
+     */
+    public PicLayerFromFile(File file, ZipIndex.Entry zipEntry) {
         // Remember the file
         m_file = file;
         super.imageFile = m_file;
@@ -44,51 +78,136 @@ public class PicLayerFromFile extends PicLayerAbstract {
         if ("zip".equalsIgnoreCase(getFileExtension(file))) {
             isZip = true;
         }
+        this.zipEntry = zipEntry;
+
+        if (zipEntry != null) {
+            m_tooltiptext = m_file.getAbsolutePath() + '/' + zipEntry.getName();
+            setName(m_file.getName() + '/' + new File(zipEntry.getName()).getName());
+        } else {
+            // Generate tooltip text
+            m_tooltiptext = m_file.getAbsolutePath();
+
+            // Set the name of the layer as the base name of the file
+            setName(m_file.getName());
+        }
+    }
+
+    /**
+     * Returns the name of the image in the zip archive.
+     *
+     * @return the entry name, or {@code null} if the layer does not show an image of a zip archive
+     */
+    public String getZipEntryName() {
+        ZipIndex.Entry entry = zipEntry;
+        return entry != null ? entry.getName() : null;
+    }
 
-        // Generate tooltip text
-        m_tooltiptext = m_file.getAbsolutePath();
+    /**
+     * Indexes the archive if needed and returns the image to show.
+     *
+     * @return the image in the archive, or {@code null} if there is none
+     * @throws IOException in case of error
+     */
+    private synchronized ZipIndex.Entry getZipEntry() throws IOException {
+        if (zipEntry == null) {
+            List<ZipIndex.Entry> images = ZipIndex.read(m_file).getImages();
+            if (!images.isEmpty()) {
+                zipEntry = images.get(0);
+            }
+        }
+        return zipEntry;
+    }
 
-        // Set the name of the layer as the base name of the file
-        setName(m_file.getName());
+    @Override
+    protected boolean canReloadImage() {
+        return true;
     }
 
     @Override
-    protected Image createImage() throws IOException {
+    protected ImageSource createImageSource(ProgressMonitor monitor) throws IOException {
         // Try to load file
         if (isZip) {
-            try (ZipFile zipFile = new ZipFile(m_file)) {
-                ZipEntry imgEntry = null;
-                Enumeration<? extends ZipEntry> entries = zipFile.entries();
-                String[] supportedImageExtensions = ImageIO.getReaderFormatNames();
-
-                while_loop:
-                while (entries.hasMoreElements()) {
-                    ZipEntry entry = entries.nextElement();
-                    for (String extension : supportedImageExtensions) {
-                        if (entry.getName().endsWith("." + extension)) {
-                            imgEntry = entry;
-                            break while_loop;
-                        }
-                    }
-                }
-                if (imgEntry != null) {
-                    imgNameInZip = imgEntry.getName();
-                    try (InputStream is = zipFile.getInputStream(imgEntry)) {
-                        return ImageIO.read(is);
-                    }
+            try {
+                ZipIndex.Entry entry = getZipEntry();
+                if (entry == null) {
+                    Logging.warn("Warning: no image in zip file found");
+                    return null;
                 }
-                Logging.warn("Warning: no image in zip file found");
-                return null;
+                return ZipIndex.openImage(m_file, entry, monitor);
+            } catch (InterruptedIOException e) {
+                throw e;
             } catch (Exception e) {
                 Logging.warn(tr("Warning: failed to handle zip file ''{0}''. Exception was: {1}", m_file.getName(), e.toString()));
                 return null;
             }
+        } else if (isSvg()) {
+            // Vector drawing, rendered at the resolution of the view
+            return SvgImageSource.open(m_file);
         } else {
-            return ImageIO.read(m_file);
+            return FileRegionDecoder.open(m_file);
         }
     }
 
-    public enum CalibrationType {CAL, WORLDFILE}
+    private boolean isSvg() {
+        return "svg".equalsIgnoreCase(getFileExtension(m_file));
+    }
+
+    @Override
+    protected Dimension probeImageSize() throws IOException {
+        if (isSvg()) {
+            return SvgImageSource.probeSize(m_file);
+        }
+        if (!isZip) {
+            return ImageDecoder.probeSize(m_file);
+        }
+        ZipIndex.Entry entry = getZipEntry();
+        if (entry == null) {
+            return null;
+        }
+        return ZipIndex.probeImageSize(m_file, entry);
+    }
+
+    /**
+     * Tells whether a file name has the extension of a picture that can be calibrated by a world file.
+     *
+     * @param fileName the name of the file
+     * @return {@code true} for jpg, png, tif and bmp files
+     */
+    public static boolean hasPictureExtension(String fileName) {
+        int dotIdx = fileName.lastIndexOf('.');
+        if (dotIdx == -1) return false;
+        String extension = fileName.substring(dotIdx).toLowerCase(Locale.ROOT);
+        for (String[] extensions : IMG_EXTENSIONS) {
+            if (Arrays.asList(extensions).contains(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the names of the world files that may calibrate the given picture, in lookup order.
+     *
+     * @param imageName the name of the picture
+     * @return the names of the candidate world files, in the same directory as the picture
+     */
+    static List<String> getWorldFileNames(String imageName) {
+        List<String> names = new ArrayList<>();
+        int dotIdx = imageName.lastIndexOf('.');
+        if (dotIdx == -1) return names;
+        String extension = imageName.substring(dotIdx);
+        String namepart = imageName.substring(0, dotIdx);
+        for (int i = 0; i < IMG_EXTENSIONS.length; ++i) {
+            if (Arrays.asList(IMG_EXTENSIONS[i]).contains(extension.toLowerCase())) {
+                for (String wldExtension : WLD_EXTENSIONS[i]) {
+                    names.add(namepart + wldExtension);
+                }
+            }
+        }
+        return names;
+    }
+
+    public enum CalibrationType {CAL, WORLDFILE, GEOTIFF}
 
     public static class CalData {
         public String[] imgExt;
@@ -102,85 +221,181 @@ public class PicLayerFromFile extends PicLayerAbstract {
         }
     }
 
+    /**
+     * Calibration file found next to the picture, or GeoTIFF tags of the picture, read in the loading thread.
+     */
+    static final class FoundCalibration {
+        private final String fileName;
+        private final byte[] content;
+        private final CalibrationType type;
+        private final boolean confirm;
+        // World file parameters of a GeoTIFF
+        private final double[] worldFile;
+        // Projection of the world file parameters, null for the current projection
+        private final Projection projection;
+
+        FoundCalibration(String fileName, byte[] content, CalibrationType type, boolean confirm) {
+            this.fileName = fileName;
+            this.content = content;
+            this.type = type;
+            this.confirm = confirm;
+            this.worldFile = null;
+            this.projection = null;
+        }
+
+        FoundCalibration(String fileName, double[] worldFile, Projection projection) {
+            this.fileName = fileName;
+            this.content = null;
+            this.type = CalibrationType.GEOTIFF;
+            this.confirm = false;
+            this.worldFile = worldFile;
+            this.projection = projection;
+        }
+    }
+
+    // Result of readCalibration(), consumed by lookForCalibration()
+    private FoundCalibration foundCalibration;
+    private boolean calibrationRead;
+    // Whether lookForCalibration() applied a calibration
+    private boolean calibrated;
+    // Why the georeferencing of a GeoTIFF could not be used, set by readCalibration()
+    private String calibrationWarning;
+    // Answer given for all the calibration files of an import, null to follow the preference
+    private Boolean autoloadCalibration;
+
+    /**
+     * Sets whether the .cal file of the picture is applied, instead of following the
+     * {@code piclayer.autoloadcal} preference. Used when many pictures are imported at once,
+     * so that the user is asked only once.
+     *
+     * @param autoload whether to apply the calibration file, {@code null} to follow the preference
+     */
+    public void setAutoloadCalibration(Boolean autoload) {
+        autoloadCalibration = autoload;
+    }
+
+    /**
+     * Tells whether a calibration file or the georeferencing of a GeoTIFF was applied by {@link #finishLoading()}.
+     *
+     * @return {@code false} if the picture is still placed at the center of the map view
+     */
+    public boolean isCalibrated() {
+        return calibrated;
+    }
+
+    /**
+     * Returns why the georeferencing found in the picture could not be applied, e.g. an unknown coordinate system.
+     *
+     * @return the reason, or {@code null} if there is none
+     */
+    public synchronized String getCalibrationWarning() {
+        return calibrationWarning;
+    }
+
+    @Override
+    protected synchronized void readCalibration() {
+        foundCalibration = findCalibration();
+        calibrationRead = true;
+    }
+
     @Override
     protected void lookForCalibration() throws IOException {
         // Manage a potential existing calibration file
+        FoundCalibration cal;
+        synchronized (this) {
+            cal = calibrationRead ? foundCalibration : findCalibration();
+            foundCalibration = null;
+            calibrationRead = false;
+        }
+        String warning = getCalibrationWarning();
+        if (cal == null && warning != null && autoloadCalibration == null) {
+            // Imports of many pictures list them instead
+            JOptionPane.showMessageDialog(MainApplication.getMainFrame(), warning, tr("Warning"), JOptionPane.WARNING_MESSAGE);
+        }
+        if (cal == null || (cal.confirm && !confirmCalibrationLoading(cal.fileName))) {
+            return;
+        }
+        if (cal.type == CalibrationType.GEOTIFF) {
+            Projection current = ProjectionRegistry.getProjection();
+            loadWorldFile(cal.projection != null
+                    ? GeoTiff.reprojectWorldFile(cal.worldFile, cal.projection, current, getImageWidth(), getImageHeight())
+                    : cal.worldFile);
+            calibrated = true;
+            return;
+        }
+        try (InputStream is = new ByteArrayInputStream(cal.content)) {
+            if (cal.type == CalibrationType.CAL) {
+                loadCalibration(is);
+            } else {
+                loadWorldFile(is);
+            }
+        }
+        calibrated = true;
+    }
 
-        String[][] imgExtensions = new String[][]{
-                {".jpg", ".jpeg"},
-                {".png"},
-                {".tif", ".tiff"},
-                {".bmp"},
-        };
-        String[][] wldExtensions = new String[][]{
-                {".wld", ".jgw", ".jpgw"},
-                {".wld", ".pgw", ".pngw"},
-                {".wld", ".tfw", ".tifw"},
-                {".wld", ".bmpw", ".bpw"},
-        };
-
+    private FoundCalibration findCalibration() {
+        calibrationWarning = null;
         if (isZip) {
-            try (ZipFile zipFile = new ZipFile(m_file)) {
-                String calFileStr = imgNameInZip + CalibrationFileFilter.EXTENSION;
-                ZipEntry calEntry = zipFile.getEntry(calFileStr);
-                if (calEntry != null) {
-                    if (confirmCalibrationLoading(calFileStr)) {
-                        InputStream is = zipFile.getInputStream(calEntry);
-                        loadCalibration(is);
-                        return;
-                    }
-                } else {
-                    int dotIdx = imgNameInZip.lastIndexOf(".");
-                    if (dotIdx == -1) return;
-                    String extension = imgNameInZip.substring(dotIdx);
-                    String namepart = imgNameInZip.substring(0, dotIdx);
-                    for (int i = 0; i < imgExtensions.length; ++i) {
-                        if (Arrays.asList(imgExtensions[i]).contains(extension.toLowerCase())) {
-                            for (String wldExtension : wldExtensions[i]) {
-                                String wldName = namepart + wldExtension;
-                                ZipEntry wldEntry = zipFile.getEntry(wldName);
-                                if (wldEntry != null) {
-                                    if (confirmCalibrationLoading(wldName)) {
-                                        InputStream is = zipFile.getInputStream(wldEntry);
-                                        loadWorldFile(is);
-                                        return;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            } catch (Exception e) {
+            try {
+                // The calibration files are read with the archive index
+                ZipIndex.Entry entry = getZipEntry();
+                return entry != null ? entry.getCalibration() : null;
+            } catch (IOException e) {
                 Logging.warn(tr("Warning: failed to handle zip file ''{0}''. Exception was: {1}", m_file.getName(), e.toString()));
-                return;
             }
         } else {
-            File calFile = new File(m_file + CalibrationFileFilter.EXTENSION);
-            if (calFile.exists()) {
-                if (confirmCalibrationLoading(calFile.getName())) {
-                    loadCalibration(new FileInputStream(calFile));
+            try {
+                File calFile = new File(m_file + CalibrationFileFilter.EXTENSION);
+                if (calFile.exists()) {
+                    return new FoundCalibration(calFile.getName(), Files.readAllBytes(calFile.toPath()), CalibrationType.CAL, true);
                 }
-            } else {
-                int dotIdx = m_file.getName().lastIndexOf(".");
-                if (dotIdx == -1) return;
-                String extension = m_file.getName().substring(dotIdx);
-                String namepart = m_file.getName().substring(0, dotIdx);
-                for (int i = 0; i < imgExtensions.length; ++i) {
-                    if (Arrays.asList(imgExtensions[i]).contains(extension.toLowerCase())) {
-                        for (String wldExtension : wldExtensions[i]) {
-                            File wldFile = new File(m_file.getParentFile(), namepart + wldExtension);
-                            if (wldFile.exists()) {
-                                loadWorldFile(new FileInputStream(wldFile));
-                                return;
-                            }
-                        }
+                for (String wldName : getWorldFileNames(m_file.getName())) {
+                    File wldFile = new File(m_file.getParentFile(), wldName);
+                    if (wldFile.exists()) {
+                        return new FoundCalibration(wldFile.getName(), Files.readAllBytes(wldFile.toPath()),
+                                CalibrationType.WORLDFILE, false);
                     }
                 }
+                return findGeoTiffCalibration();
+            } catch (IOException e) {
+                Logging.warn(tr("Warning: failed to read the calibration of ''{0}''. Exception was: {1}", m_file.getName(), e.toString()));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the georeferencing tags of a GeoTIFF file, used when there is no calibration file.
+     * Coordinates in another coordinate system than the current projection are reprojected when
+     * the calibration is applied. They are ignored if the coordinate system is unknown to JOSM.
+     */
+    private FoundCalibration findGeoTiffCalibration() throws IOException {
+        String extension = getFileExtension(m_file);
+        if (!"tif".equalsIgnoreCase(extension) && !"tiff".equalsIgnoreCase(extension)) {
+            return null;
+        }
+        GeoTiff geoTiff = GeoTiff.read(m_file);
+        if (geoTiff == null) {
+            return null;
+        }
+        String crs = geoTiff.getCrsCode();
+        Projection projection = null;
+        if (crs != null && !crs.equals(ProjectionRegistry.getProjection().toCode())) {
+            projection = Projections.getProjectionByCode(crs);
+            if (projection == null) {
+                calibrationWarning = tr("The GeoTIFF ''{0}'' is in the unknown coordinate system {1}. Its georeferencing is ignored.",
+                        m_file.getName(), crs);
+                Logging.warn(calibrationWarning);
+                return null;
             }
         }
+        return new FoundCalibration(m_file.getName(), geoTiff.getWorldFile(), projection);
     }
 
     protected boolean confirmCalibrationLoading(String fileName) {
+        if (autoloadCalibration != null) {
+            return autoloadCalibration;
+        }
         String prefkey = "piclayer.autoloadcal";
         String policy = Config.getPref().get(prefkey, "");
         policy = policy.trim().toLowerCase();
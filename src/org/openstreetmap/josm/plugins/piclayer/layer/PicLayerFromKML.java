@@ -1,27 +1,34 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.layer;
 
-import java.awt.Image;
+import java.awt.Dimension;
 import java.awt.geom.AffineTransform;
 import java.io.File;
 import java.io.IOException;
 
-import javax.imageio.ImageIO;
-
 import org.openstreetmap.josm.data.coor.EastNorth;
 import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
 import org.openstreetmap.josm.plugins.piclayer.layer.kml.KMLGroundOverlay;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.FileRegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
 
 public class PicLayerFromKML extends PicLayerAbstract {
 
     private final KMLGroundOverlay calibration;
     private final File picture;
     private final String pictureName;
+    // For KMZ archives: the archive, and the picture inside it
+    private final File archive;
+    private final ZipIndex.Entry zipEntry;
 
     public PicLayerFromKML(File main, KMLGroundOverlay calibration) {
 
         picture = new File(main.getParent() + File.separatorChar + calibration.getFileName());
         this.calibration = calibration;
+        archive = null;
+        zipEntry = null;
 
         pictureName = calibration.getName();
 
@@ -31,9 +38,89 @@ public class PicLayerFromKML extends PicLayerAbstract {
         setName(picture.getName());
     }
 
+    /**
+     * Constructs a layer for a ground overlay of a KMZ archive, whose picture is read from the archive.
+     *
+     * @param kmz         the KMZ archive
+     * @param zipEntry    the picture of the overlay, from the index of the archive
+     * @param calibration the ground overlay
+     */
+    public PicLayerFromKML(File kmz, ZipIndex.Entry zipEntry, KMLGroundOverlay calibration) {
+        picture = null;
+        this.calibration = calibration;
+        archive = kmz;
+        this.zipEntry = zipEntry;
+
+        pictureName = calibration.getName();
+
+        super.imageFile = kmz;
+
+        setName(kmz.getName() + '/' + new File(zipEntry.getName()).getName());
+    }
+
+    /**
+     * Finds the picture of a ground overlay in a KMZ archive.
+     *
+     * @param index        the index of the archive
+     * @param documentName the name of the KML document in the archive, the links are relative to it
+     * @param overlay      the ground overlay
+     * @return the picture, or {@code null} if the archive does not contain it
+     */
+    public static ZipIndex.Entry findPicture(ZipIndex index, String documentName, KMLGroundOverlay overlay) {
+        String href = overlay.getFileName();
+        if (href == null) {
+            return null;
+        }
+        href = href.replace('\\', '/');
+        while (href.startsWith("./")) {
+            href = href.substring(2);
+        }
+        int slash = documentName != null ? documentName.lastIndexOf('/') : -1;
+        if (slash < 0) {
+            return index.getImage(href);
+        }
+        ZipIndex.Entry entry = index.getImage(documentName.substring(0, slash + 1) + href);
+        // Some tools write the links relative to the root of the archive
+        return entry != null ? entry : index.getImage(href);
+    }
+
+    /**
+     * Returns the name of the picture in the KMZ archive.
+     *
+     * @return the entry name, or {@code null} if the layer shows a picture next to a KML file
+     */
+    public String getZipEntryName() {
+        return zipEntry != null ? zipEntry.getName() : null;
+    }
+
+    /**
+     * Returns the ground overlay calibrating the picture.
+     *
+     * @return the ground overlay
+     */
+    public KMLGroundOverlay getGroundOverlay() {
+        return calibration;
+    }
+
+    @Override
+    protected ImageSource createImageSource(ProgressMonitor monitor) throws IOException {
+        if (zipEntry != null) {
+            return ZipIndex.openImage(archive, zipEntry, monitor);
+        }
+        return FileRegionDecoder.open(picture);
+    }
+
+    @Override
+    protected Dimension probeImageSize() throws IOException {
+        if (zipEntry != null) {
+            return ZipIndex.probeImageSize(archive, zipEntry);
+        }
+        return ImageDecoder.probeSize(picture);
+    }
+
     @Override
-    protected Image createImage() throws IOException {
-        return ImageIO.read(picture);
+    protected boolean canReloadImage() {
+        return true;
     }
 
     @Override
@@ -49,8 +136,8 @@ public class PicLayerFromKML extends PicLayerAbstract {
     }
 
     public void loadCalibration(KMLGroundOverlay cal) {
-        int w = image.getWidth(null);
-        int h = image.getHeight(null);
+        int w = getImageWidth();
+        int h = getImageHeight();
         LatLon coord1 = new LatLon(cal.getNorth(), cal.getEast());
         LatLon coord2 = new LatLon(cal.getSouth(), cal.getWest());
 
@@ -67,7 +154,7 @@ public class PicLayerFromKML extends PicLayerAbstract {
         transform.rotate(cal.getRotate() / 180.0 * Math.PI);
 
         transformer.resetCalibration();
-        transformer.getTransform().concatenate(transform);
+        transformer.concatenateTransform(transform);
     }
 
 }
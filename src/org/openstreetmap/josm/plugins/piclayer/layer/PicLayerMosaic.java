@@ -0,0 +1,233 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+import static org.openstreetmap.josm.tools.I18n.trn;
+
+import java.awt.Graphics2D;
+import java.awt.Toolkit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import javax.swing.Action;
+import javax.swing.Icon;
+import javax.swing.ImageIcon;
+
+import org.openstreetmap.josm.actions.RenameLayerAction;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.data.ProjectionBounds;
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.osm.visitor.BoundingXYVisitor;
+import org.openstreetmap.josm.data.projection.Projection;
+import org.openstreetmap.josm.gui.MapView;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Layer displaying many calibrated pictures, e.g. the orthophoto tiles or the map sheets of a folder.
+ * <p>
+ * Each picture keeps its own calibration and pyramid, but the layer list only shows one
+ * layer and the map view paints it once. The footprints of the pictures are indexed in a
+ * {@link FootprintIndex}, so that only the pictures intersecting the view are painted,
+ * each at the pyramid level matching the zoom. The pictures far from the view are reported
+ * off-screen to the {@link RasterMemoryManager}, which releases their pixels.
+ * <p>
+ * The pictures are added and painted in the EDT.
+ */
+public class PicLayerMosaic extends Layer {
+
+    private final Icon layerIcon;
+    private final List<PicLayerAbstract> pictures = new ArrayList<>();
+    private final PaintableInvalidationListener pictureListener = e -> invalidate();
+
+    // Index of the footprints, null when it must be rebuilt
+    private FootprintIndex<PicLayerAbstract> index;
+    // Pictures whose footprint is not known, e.g. in EPSG:4326, always painted
+    private List<PicLayerAbstract> unindexed = Collections.emptyList();
+    private Map<PicLayerAbstract, ProjectionBounds> footprints = Collections.emptyMap();
+    // Pictures near the view at the last paint
+    private Set<PicLayerAbstract> nearView = Collections.emptySet();
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the layer
+     */
+    public PicLayerMosaic(String name) {
+        super(name);
+        layerIcon = new ImageIcon(Toolkit.getDefaultToolkit().createImage(getClass().getResource("/images/layericon.png")));
+        addPropertyChangeListener(e -> {
+            if (VISIBLE_PROP.equals(e.getPropertyName())) {
+                // Lets the memory manager release the pixels of a hidden mosaic
+                for (PicLayerAbstract picture : pictures) {
+                    picture.setVisible(isVisible());
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds a picture to the mosaic. The picture must be calibrated, its pixels can be loaded
+     * later (see {@link PicLayerAbstract#loadWhenVisible()}). Must be called in the EDT.
+     *
+     * @param picture the picture, not added to the layer manager
+     */
+    public void addPicture(PicLayerAbstract picture) {
+        pictures.add(picture);
+        picture.setVisible(isVisible());
+        picture.addInvalidationListener(pictureListener);
+        index = null;
+        invalidate();
+    }
+
+    /**
+     * Returns the pictures of the mosaic.
+     *
+     * @return the pictures, in painting order
+     */
+    public List<PicLayerAbstract> getPictures() {
+        return Collections.unmodifiableList(pictures);
+    }
+
+    private FootprintIndex<PicLayerAbstract> getIndex() {
+        if (index == null) {
+            List<PicLayerAbstract> indexed = new ArrayList<>(pictures.size());
+            List<ProjectionBounds> bounds = new ArrayList<>(pictures.size());
+            List<PicLayerAbstract> others = new ArrayList<>();
+            Map<PicLayerAbstract, ProjectionBounds> boxes = new IdentityHashMap<>();
+            for (PicLayerAbstract picture : pictures) {
+                BoundingXYVisitor v = new BoundingXYVisitor();
+                picture.visitBoundingBox(v);
+                ProjectionBounds b = v.getBounds();
+                if (b != null) {
+                    indexed.add(picture);
+                    bounds.add(b);
+                    boxes.put(picture, b);
+                } else {
+                    others.add(picture);
+                }
+            }
+            index = new FootprintIndex<>(indexed, bounds);
+            unindexed = others;
+            footprints = boxes;
+        }
+        return index;
+    }
+
+    @Override
+    public void paint(Graphics2D g, MapView mv, Bounds bounds) {
+        FootprintIndex<PicLayerAbstract> idx = getIndex();
+        EastNorth topLeft = mv.getEastNorth(0, 0);
+        EastNorth bottomRight = mv.getEastNorth(mv.getWidth(), mv.getHeight());
+        ProjectionBounds view = new ProjectionBounds(topLeft.east(), bottomRight.north(), bottomRight.east(), topLeft.north());
+        // Same margin as the layers painted on their own: one view size around the view
+        double w = view.maxEast - view.minEast;
+        double h = view.maxNorth - view.minNorth;
+        ProjectionBounds near = new ProjectionBounds(view.minEast - w, view.minNorth - h, view.maxEast + w, view.maxNorth + h);
+
+        Set<PicLayerAbstract> shown = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (PicLayerAbstract picture : idx.query(near)) {
+            shown.add(picture);
+            if (footprints.get(picture).intersects(view)) {
+                picture.paint(g, mv, bounds);
+            } else {
+                picture.setOnScreen(true);
+            }
+        }
+        for (PicLayerAbstract picture : unindexed) {
+            picture.paint(g, mv, bounds);
+        }
+        for (PicLayerAbstract picture : nearView) {
+            if (!shown.contains(picture)) {
+                picture.setOnScreen(false);
+            }
+        }
+        if (!nearView.equals(shown)) {
+            RasterMemoryManager.requestCheck();
+        }
+        nearView = shown;
+    }
+
+    @Override
+    public void visitBoundingBox(BoundingXYVisitor v) {
+        for (PicLayerAbstract picture : pictures) {
+            picture.visitBoundingBox(v);
+        }
+    }
+
+    @Override
+    public void projectionChanged(Projection oldValue, Projection newValue) {
+        super.projectionChanged(oldValue, newValue);
+        for (PicLayerAbstract picture : pictures) {
+            picture.projectionChanged(oldValue, newValue);
+        }
+        index = null;
+    }
+
+    @Override
+    public Icon getIcon() {
+        return layerIcon;
+    }
+
+    @Override
+    public Object getInfoComponent() {
+        int loaded = 0;
+        long bytes = 0;
+        for (PicLayerAbstract picture : pictures) {
+            if (picture.getImage() != null) {
+                loaded++;
+            }
+            bytes += picture.getImageByteSize();
+        }
+        return trn("{0} picture", "{0} pictures", pictures.size(), pictures.size()) + "\n"
+                + tr("Loaded: {0}", loaded) + "\n"
+                + tr("Memory: {0}", Utils.getSizeString(bytes, Locale.getDefault()));
+    }
+
+    @Override
+    public Action[] getMenuEntries() {
+        return new Action[]{
+                new RenameLayerAction(null, this),
+        };
+    }
+
+    @Override
+    public String getToolTipText() {
+        return trn("{0} picture", "{0} pictures", pictures.size(), pictures.size());
+    }
+
+    @Override
+    public boolean isMergable(Layer other) {
+        return other instanceof PicLayerMosaic;
+    }
+
+    @Override
+    public void mergeFrom(Layer from) {
+        PicLayerMosaic other = (PicLayerMosaic) from;
+        for (PicLayerAbstract picture : other.pictures) {
+            picture.removeInvalidationListener(other.pictureListener);
+            addPicture(picture);
+        }
+        // The pictures now belong to this mosaic, the other one must not destroy them
+        other.pictures.clear();
+        other.index = null;
+        other.nearView = Collections.emptySet();
+    }
+
+    @Override
+    public synchronized void destroy() {
+        super.destroy();
+        for (PicLayerAbstract picture : pictures) {
+            picture.removeInvalidationListener(pictureListener);
+            picture.destroy();
+        }
+        pictures.clear();
+        index = null;
+        nearView = Collections.emptySet();
+    }
+}
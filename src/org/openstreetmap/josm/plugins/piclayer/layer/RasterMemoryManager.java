@@ -0,0 +1,205 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.openstreetmap.josm.gui.NavigatableComponent;
+import org.openstreetmap.josm.gui.NavigatableComponent.ZoomChangeListener;
+import org.openstreetmap.josm.gui.layer.Layer;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.TileStore;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Keeps the pixels of all the picture layers within a memory budget.
+ * <p>
+ * The layers register once their picture is loaded. When their pixels use more memory than
+ * the budget, the layers that are hidden or outside of the map view release their pixels,
+ * least recently painted first, and only keep a small preview. They reload the picture in the
+ * background, from the disk cache if possible, as soon as they are painted at a finer resolution.
+ * <p>
+ * The budget includes the unpacked tiles shared by the layers (see {@link TileStore}), which have
+ * their own limit: the pixels of the layers get what the tile cache leaves.
+ * <p>
+ * Independently of the budget, layers that stay hidden or away from the map view for a while
+ * release their pixels too. The checks are driven by the visibility of the layers and by the
+ * changes of the map view.
+ */
+public final class RasterMemoryManager {
+
+    // Preference: memory budget for the pixels of all the picture layers, unpacked tiles included,
+    // in megabytes, 0 for a quarter of the heap
+    private static final String PREF_BUDGET = "piclayer.memory.budget";
+    // Preference: seconds after which a hidden or off-screen layer releases its pixels, negative to keep them
+    private static final String PREF_RELEASE_DELAY = "piclayer.memory.release-delay";
+
+    // Loaded layers, guarded by itself
+    private static final Set<PicLayerAbstract> LAYERS = Collections.newSetFromMap(new WeakHashMap<>());
+    private static final AtomicBoolean CHECK_PENDING = new AtomicBoolean();
+    private static final ScheduledExecutorService WORKER = Executors.newSingleThreadScheduledExecutor(
+            Utils.newThreadFactory("piclayer-memory-%d", Thread.NORM_PRIORITY));
+    private static final ExecutorService LOADERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            Utils.newThreadFactory("piclayer-loader-%d", Thread.NORM_PRIORITY));
+    // Next delayed check, guarded by the class
+    private static ScheduledFuture<?> scheduled;
+    private static long scheduledAt;
+
+    private static final PropertyChangeListener VISIBILITY_LISTENER = e -> {
+        if (Layer.VISIBLE_PROP.equals(e.getPropertyName())) {
+            requestCheck();
+        }
+    };
+    private static final ZoomChangeListener VIEW_LISTENER = RasterMemoryManager::requestCheck;
+
+    static {
+        NavigatableComponent.addZoomChangeListener(VIEW_LISTENER);
+    }
+
+    private RasterMemoryManager() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Returns the memory budget for the pixels of all the picture layers, including their unpacked tiles.
+     *
+     * @return the budget, in bytes
+     */
+    public static long getBudget() {
+        long megabytes = Config.getPref().getLong(PREF_BUDGET, 0);
+        return megabytes > 0 ? megabytes * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * Returns the memory used by the pixels of all the picture layers, including their unpacked tiles.
+     *
+     * @return the size, in bytes
+     */
+    public static long getUsedBytes() {
+        return getUsedBytes(getLayers());
+    }
+
+    private static long getUsedBytes(List<PicLayerAbstract> layers) {
+        long used = TileStore.getUnpackedBytes();
+        for (PicLayerAbstract layer : layers) {
+            used += layer.getImageByteSize();
+        }
+        return used;
+    }
+
+    static void register(PicLayerAbstract layer) {
+        boolean added;
+        synchronized (LAYERS) {
+            added = LAYERS.add(layer);
+        }
+        if (added) {
+            layer.addPropertyChangeListener(VISIBILITY_LISTENER);
+        }
+        requestCheck();
+    }
+
+    static void unregister(PicLayerAbstract layer) {
+        synchronized (LAYERS) {
+            LAYERS.remove(layer);
+        }
+        layer.removePropertyChangeListener(VISIBILITY_LISTENER);
+    }
+
+    /**
+     * Checks the memory used by the layers in the background. Several requests are coalesced.
+     */
+    static void requestCheck() {
+        if (CHECK_PENDING.compareAndSet(false, true)) {
+            WORKER.execute(() -> {
+                CHECK_PENDING.set(false);
+                check();
+            });
+        }
+    }
+
+    /**
+     * Loads the released pixels of a layer in the background.
+     *
+     * @param layer the layer
+     */
+    static void reload(PicLayerAbstract layer) {
+        LOADERS.execute(layer::reloadPixels);
+    }
+
+    private static List<PicLayerAbstract> getLayers() {
+        synchronized (LAYERS) {
+            return new ArrayList<>(LAYERS);
+        }
+    }
+
+    private static synchronized void scheduleCheck(long delayNanos) {
+        long at = System.nanoTime() + delayNanos;
+        if (scheduled != null && !scheduled.isDone()) {
+            if (scheduledAt - at <= 0) {
+                return;
+            }
+            scheduled.cancel(false);
+        }
+        scheduledAt = at;
+        scheduled = WORKER.schedule(RasterMemoryManager::check, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static void check() {
+        List<PicLayerAbstract> layers = getLayers();
+        List<PicLayerAbstract> candidates = new ArrayList<>();
+        for (PicLayerAbstract layer : layers) {
+            if (layer.canReleasePixels() && (!layer.isVisible() || !layer.isOnScreen())) {
+                candidates.add(layer);
+            }
+        }
+
+        // Layers hidden or off-screen for a while
+        long delay = Config.getPref().getLong(PREF_RELEASE_DELAY, 60);
+        if (delay >= 0) {
+            long now = System.nanoTime();
+            long next = Long.MAX_VALUE;
+            for (PicLayerAbstract layer : candidates) {
+                long due = layer.getLastPainted() + TimeUnit.SECONDS.toNanos(delay);
+                if (due - now <= 0) {
+                    layer.releasePixels();
+                    Logging.debug("PicLayer: released the pixels of {0}, not shown for {1} s", layer.getName(), delay);
+                } else {
+                    next = Math.min(next, due - now);
+                }
+            }
+            if (next != Long.MAX_VALUE) {
+                scheduleCheck(next);
+            }
+        }
+
+        long used = getUsedBytes(layers);
+        long budget = getBudget();
+        if (used <= budget) {
+            return;
+        }
+        candidates.removeIf(layer -> !layer.canReleasePixels());
+        candidates.sort(Comparator.comparingLong(PicLayerAbstract::getLastPainted));
+        for (PicLayerAbstract layer : candidates) {
+            if (used <= budget) {
+                break;
+            }
+            layer.releasePixels();
+            // Releasing the pixels also drops the unpacked tiles of the layer
+            used = getUsedBytes(layers);
+            Logging.debug("PicLayer: released the pixels of {0}", layer.getName());
+        }
+    }
+}
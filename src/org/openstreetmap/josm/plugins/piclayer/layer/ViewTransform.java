@@ -0,0 +1,66 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.gui.MapViewState;
+
+/**
+ * Snapshot of the transforms between the map view and the pixels of a picture,
+ * valid for one map view state and one picture calibration.
+ */
+final class ViewTransform {
+
+    // What the snapshot was computed for
+    final MapViewState state;
+    final double initialImageScale;
+
+    // East/north of the top left corner of the view
+    final EastNorth leftop;
+    // Number of view pixels for one unit in east north space
+    final double pixelPerEn;
+    // Offset of the picture position, in view pixels
+    final double picOffsetX;
+    final double picOffsetY;
+    // Transform from picture pixels (centered) to view pixels, relative to the picture position
+    final AffineTransform scaled;
+    // Transform from picture pixels (centered) to view pixels
+    final AffineTransform chain;
+    // Inverse of chain, null if the picture transform is degenerated
+    private final AffineTransform inverse;
+
+    ViewTransform(MapViewState state, double initialImageScale, EastNorth leftop, double pixelPerEn,
+                  double picOffsetX, double picOffsetY, AffineTransform scaled) {
+        this.state = state;
+        this.initialImageScale = initialImageScale;
+        this.leftop = leftop;
+        this.pixelPerEn = pixelPerEn;
+        this.picOffsetX = picOffsetX;
+        this.picOffsetY = picOffsetY;
+        this.scaled = scaled;
+        this.chain = AffineTransform.getTranslateInstance(picOffsetX, picOffsetY);
+        chain.concatenate(scaled);
+        AffineTransform inv;
+        try {
+            inv = chain.createInverse();
+        } catch (NoninvertibleTransformException e) {
+            inv = null;
+        }
+        this.inverse = inv;
+    }
+
+    /**
+     * Returns the transform from view pixels to picture pixels (centered).
+     *
+     * @return the inverse of {@link #chain}
+     * @throws NoninvertibleTransformException if the picture transform is degenerated
+     */
+    AffineTransform getInverse() throws NoninvertibleTransformException {
+        if (inverse == null) {
+            throw new NoninvertibleTransformException("Determinant is " + chain.getDeterminant());
+        }
+        return inverse;
+    }
+}
@@ -0,0 +1,346 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile.CalibrationType;
+import org.openstreetmap.josm.plugins.piclayer.layer.PicLayerFromFile.FoundCalibration;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ByteBufferImageInputStream;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.FileRegionDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageDecoder;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.WholeImageSource;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Index of the pictures of a zip archive and of their calibration files.
+ * <p>
+ * The index is built in a single pass over the entries of the archive. The calibration
+ * files (.cal or world files next to a picture, by base name) are small, so they are read
+ * at the same time and the archive does not need to be opened again to calibrate a layer.
+ * <p>
+ * For pictures stored without compression, the offset of their data in the archive is
+ * read from the central directory, so that they can be mapped directly from the file.
+ * The pictures are always read from the archive, never extracted to disk.
+ */
+public final class ZipIndex {
+
+    /**
+     * A picture of the archive.
+     */
+    public static final class Entry {
+        private final String name;
+        private final boolean stored;
+        private final long size;
+        private final long dataOffset;
+        private final FoundCalibration calibration;
+
+        Entry(ZipEntry entry, long dataOffset, FoundCalibration calibration) {
+            this.name = entry.getName();
+            this.stored = entry.getMethod() == ZipEntry.STORED;
+            this.size = entry.getSize();
+            this.dataOffset = dataOffset;
+            this.calibration = calibration;
+        }
+
+        /**
+         * Returns the name of the entry in the archive.
+         *
+         * @return the entry name, including its directory
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Tells whether the picture is stored in the archive without compression.
+         *
+         * @return {@code true} for STORED entries, {@code false} for DEFLATED ones
+         */
+        public boolean isStored() {
+            return stored;
+        }
+
+        /**
+         * Returns the uncompressed size of the picture file.
+         *
+         * @return the size in bytes, or -1 if unknown
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Returns the offset of the picture data in the archive file, for STORED entries.
+         *
+         * @return the offset in bytes, or -1 if the entry is compressed or the offset is unknown
+         */
+        public long getDataOffset() {
+            return dataOffset;
+        }
+
+        FoundCalibration getCalibration() {
+            return calibration;
+        }
+    }
+
+    // Zip format signatures and fixed header sizes
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+
+    private final File file;
+    private final List<Entry> images;
+
+    private ZipIndex(File file, List<Entry> images) {
+        this.file = file;
+        this.images = Collections.unmodifiableList(images);
+    }
+
+    /**
+     * Indexes a zip archive.
+     *
+     * @param file the zip archive
+     * @return the index
+     * @throws IOException in case of error
+     */
+    public static ZipIndex read(File file) throws IOException {
+        Set<String> formats = new HashSet<>();
+        for (String format : ImageIO.getReaderFormatNames()) {
+            formats.add(format.toLowerCase(Locale.ROOT));
+        }
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            Map<String, ZipEntry> byName = new HashMap<>();
+            List<ZipEntry> pictures = new ArrayList<>();
+            Set<String> storedPictures = new HashSet<>();
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory()) {
+                    continue;
+                }
+                String name = entry.getName();
+                byName.put(name, entry);
+                int dotIdx = name.lastIndexOf('.');
+                if (dotIdx != -1 && formats.contains(name.substring(dotIdx + 1).toLowerCase(Locale.ROOT))) {
+                    pictures.add(entry);
+                    if (entry.getMethod() == ZipEntry.STORED) {
+                        storedPictures.add(name);
+                    }
+                }
+            }
+
+            Map<String, Long> dataOffsets = storedPictures.isEmpty()
+                    ? Collections.<String, Long>emptyMap() : readDataOffsets(file, storedPictures);
+            List<Entry> images = new ArrayList<>(pictures.size());
+            for (ZipEntry picture : pictures) {
+                long dataOffset = dataOffsets.getOrDefault(picture.getName(), -1L);
+                images.add(new Entry(picture, dataOffset, readCalibration(zipFile, byName, picture.getName())));
+            }
+            return new ZipIndex(file, images);
+        }
+    }
+
+    /**
+     * Reads the offset of the data of the given entries from the central directory of the archive.
+     * Zip64 archives are not supported, their entries get no offset.
+     *
+     * @param file  the archive
+     * @param names the names of the entries
+     * @return the data offsets by entry name, missing for entries that could not be resolved
+     * @throws IOException in case of error
+     */
+    private static Map<String, Long> readDataOffsets(File file, Set<String> names) throws IOException {
+        Map<String, Long> offsets = new HashMap<>();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            // End of central directory record, followed by a comment of at most 64 KB
+            int tailLength = (int) Math.min(size, END_HEADER_SIZE + 0xffff);
+            ByteBuffer tail = read(channel, size - tailLength, tailLength);
+            int end = -1;
+            for (int i = tailLength - END_HEADER_SIZE; i >= 0; i--) {
+                if (tail.getInt(i) == END_SIGNATURE) {
+                    end = i;
+                    break;
+                }
+            }
+            if (end < 0) {
+                return offsets;
+            }
+            long cdSize = tail.getInt(end + 12) & 0xffffffffL;
+            long cdOffset = tail.getInt(end + 16) & 0xffffffffL;
+            if (cdOffset == 0xffffffffL || cdOffset + cdSize > size) {
+                return offsets;
+            }
+
+            ByteBuffer cd = channel.map(FileChannel.MapMode.READ_ONLY, cdOffset, cdSize).order(ByteOrder.LITTLE_ENDIAN);
+            int p = 0;
+            while (p + CENTRAL_HEADER_SIZE <= cdSize && cd.getInt(p) == CENTRAL_SIGNATURE) {
+                int nameLength = cd.getShort(p + 28) & 0xffff;
+                int extraLength = cd.getShort(p + 30) & 0xffff;
+                int commentLength = cd.getShort(p + 32) & 0xffff;
+                long localOffset = cd.getInt(p + 42) & 0xffffffffL;
+                long compressedSize = cd.getInt(p + 20) & 0xffffffffL;
+                byte[] nameBytes = new byte[nameLength];
+                cd.position(p + CENTRAL_HEADER_SIZE);
+                cd.get(nameBytes);
+                String name = new String(nameBytes, StandardCharsets.UTF_8);
+                if (names.contains(name) && localOffset != 0xffffffffL && compressedSize != 0xffffffffL) {
+                    // The local header has its own name and extra field lengths
+                    ByteBuffer local = read(channel, localOffset, LOCAL_HEADER_SIZE);
+                    if (local.getInt(0) == LOCAL_SIGNATURE) {
+                        offsets.put(name, localOffset + LOCAL_HEADER_SIZE
+                                + (local.getShort(26) & 0xffff) + (local.getShort(28) & 0xffff));
+                    }
+                }
+                p += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+            }
+        }
+        return offsets;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException();
+            }
+        }
+        return buffer;
+    }
+
+    private static FoundCalibration readCalibration(ZipFile zipFile, Map<String, ZipEntry> byName, String imageName)
+            throws IOException {
+        String calName = imageName + CalibrationFileFilter.EXTENSION;
+        ZipEntry calEntry = byName.get(calName);
+        if (calEntry != null) {
+            return new FoundCalibration(calName, readEntry(zipFile, calEntry), CalibrationType.CAL, true);
+        }
+        for (String wldName : PicLayerFromFile.getWorldFileNames(imageName)) {
+            ZipEntry wldEntry = byName.get(wldName);
+            if (wldEntry != null) {
+                return new FoundCalibration(wldName, readEntry(zipFile, wldEntry), CalibrationType.WORLDFILE, true);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a picture of an archive. Uncompressed pictures are mapped from the archive and
+     * decoded by region, compressed ones are inflated and decoded at once.
+     *
+     * @param archive the archive
+     * @param entry   the picture, from the index of the archive
+     * @param monitor the progress monitor
+     * @return the picture, or {@code null} if its format is not supported
+     * @throws IOException in case of error
+     */
+    static ImageSource openImage(File archive, Entry entry, ProgressMonitor monitor) throws IOException {
+        if (isMappable(entry)) {
+            // No inflater and no copy
+            return FileRegionDecoder.open(mapEntry(archive, entry));
+        }
+        try (ZipFile zipFile = new ZipFile(archive);
+             InputStream is = zipFile.getInputStream(zipFile.getEntry(entry.getName()))) {
+            BufferedImage image = ImageDecoder.read(is, monitor);
+            return image != null ? new WholeImageSource(image) : null;
+        }
+    }
+
+    /**
+     * Reads the size of a picture of an archive from its header.
+     *
+     * @param archive the archive
+     * @param entry   the picture, from the index of the archive
+     * @return the size, or {@code null} if its format is not supported
+     * @throws IOException in case of error
+     */
+    static Dimension probeImageSize(File archive, Entry entry) throws IOException {
+        if (isMappable(entry)) {
+            return ImageDecoder.probeSize(mapEntry(archive, entry));
+        }
+        try (ZipFile zipFile = new ZipFile(archive);
+             InputStream is = zipFile.getInputStream(zipFile.getEntry(entry.getName()))) {
+            return ImageDecoder.probeSize(is);
+        }
+    }
+
+    private static boolean isMappable(Entry entry) {
+        return entry.getDataOffset() >= 0 && entry.getSize() <= Integer.MAX_VALUE;
+    }
+
+    private static ImageInputStream mapEntry(File archive, Entry entry) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+            return new ByteBufferImageInputStream(
+                    channel.map(FileChannel.MapMode.READ_ONLY, entry.getDataOffset(), entry.getSize()));
+        }
+    }
+
+    private static byte[] readEntry(ZipFile zipFile, ZipEntry entry) throws IOException {
+        try (InputStream is = zipFile.getInputStream(entry)) {
+            return Utils.readBytesFromStream(is);
+        }
+    }
+
+    /**
+     * Returns the archive.
+     *
+     * @return the zip file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the pictures of the archive, in the order of the archive.
+     *
+     * @return the pictures
+     */
+    public List<Entry> getImages() {
+        return images;
+    }
+
+    /**
+     * Returns the picture with the given name.
+     *
+     * @param name the name of the entry
+     * @return the picture, or {@code null} if there is no such picture in the archive
+     */
+    public Entry getImage(String name) {
+        for (Entry e : images) {
+            if (e.getName().equals(name)) {
+                return e;
+            }
+        }
+        return null;
+    }
+}
@@ -1,28 +1,33 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.piclayer.layer.kml;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.function.Consumer;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
 
+/**
+ * Reads the ground overlays of a KML document, and gives each of them to a callback as soon
+ * as its end tag is parsed.
+ */
 class KMLHandler extends DefaultHandler {
 
     private boolean inGroundOverlay = false;
     private boolean inIcon = false;
     private boolean inLatLonBox = false;
-    private String value;
-    private final List<KMLGroundOverlay> result;
+    // Text of the current element, the parser may give it in several chunks
+    private final StringBuilder text = new StringBuilder();
+    private final Consumer<KMLGroundOverlay> result;
     private KMLGroundOverlay overlay;
 
-    KMLHandler() {
-        result = new ArrayList<>();
+    KMLHandler(Consumer<KMLGroundOverlay> result) {
+        this.result = result;
     }
 
     @Override
     public void startElement(String uri, String localName, String qName,
                              Attributes attributes) {
+        text.setLength(0);
         if ("GroundOverlay".equals(localName)) {
             inGroundOverlay = true;
             overlay = new KMLGroundOverlay();
@@ -35,6 +40,8 @@ class KMLHandler extends DefaultHandler {
 
     @Override
     public void endElement(String uri, String localName, String qName) {
+        String value = text.toString();
+        text.setLength(0);
         if (inGroundOverlay && "name".equals(localName)) {
             overlay.setName(value.trim());
         } else if (inIcon && "href".equals(localName)) {
@@ -55,16 +62,13 @@ class KMLHandler extends DefaultHandler {
             inIcon = false;
         } else if (inGroundOverlay && "GroundOverlay".equals(localName)) {
             inGroundOverlay = false;
-            result.add(overlay);
+            result.accept(overlay);
+            overlay = null;
         }
     }
 
     @Override
     public void characters(char[] ch, int start, int length) {
-        value = new String(ch, start, length);
-    }
-
-    public List<KMLGroundOverlay> getResult() {
-        return result;
+        text.append(ch, start, length);
     }
 }
\ No newline at end of file
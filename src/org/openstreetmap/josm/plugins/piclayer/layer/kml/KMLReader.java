@@ -3,9 +3,17 @@ package org.openstreetmap.josm.plugins.piclayer.layer.kml;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Enumeration;
 import java.util.List;
+import java.util.Locale;
+import java.util.function.Consumer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.openstreetmap.josm.tools.Logging;
 import org.xml.sax.InputSource;
@@ -16,32 +24,114 @@ import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 
+/**
+ * Reads the ground overlays of a KML file, or of the KML document of a KMZ archive.
+ * <p>
+ * The document is streamed: with {@link #read(Consumer)}, each overlay can be used, e.g. to
+ * start decoding its picture, while the rest of the document is still being parsed.
+ */
 public class KMLReader {
 
     private List<KMLGroundOverlay> groundOverlays;
 
     private final File file;
+    // Name of the KML document in the archive, for KMZ files
+    private String documentName;
 
     public KMLReader(File file) {
         this.file = file;
     }
 
+    /**
+     * Reads all the ground overlays of the file. Errors are logged, the overlays read before are kept.
+     */
     public void process() {
-        KMLHandler handler = new KMLHandler();
+        List<KMLGroundOverlay> overlays = new ArrayList<>();
+        try {
+            read(overlays::add);
+        } catch (IOException e) {
+            Logging.error(e);
+        }
+        groundOverlays = overlays;
+    }
+
+    /**
+     * Parses the file, and gives each ground overlay to a callback as soon as it is read,
+     * in document order. Called in the thread reading the file.
+     *
+     * @param callback receives the overlays
+     * @throws IOException if the file can not be read or is not valid XML
+     */
+    public void read(Consumer<KMLGroundOverlay> callback) throws IOException {
+        KMLHandler handler = new KMLHandler(callback);
         try {
             SAXParserFactory parserFactory = SAXParserFactory.newInstance();
             parserFactory.setNamespaceAware(true);
             SAXParser parser = parserFactory.newSAXParser();
             XMLReader xr = parser.getXMLReader();
             xr.setContentHandler(handler);
-            xr.parse(new InputSource(Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)));
-        } catch (SAXException | IOException | ParserConfigurationException e) {
-            Logging.error(e);
+            if (isKmz(file)) {
+                // Parsed from the archive, not extracted
+                try (ZipFile zipFile = new ZipFile(file)) {
+                    ZipEntry document = findDocument(zipFile);
+                    if (document == null) {
+                        throw new IOException("No KML document in " + file.getName());
+                    }
+                    documentName = document.getName();
+                    try (InputStream is = zipFile.getInputStream(document)) {
+                        xr.parse(new InputSource(is));
+                    }
+                }
+            } else {
+                try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                    xr.parse(new InputSource(reader));
+                }
+            }
+        } catch (SAXException | ParserConfigurationException e) {
+            throw new IOException(e.getMessage(), e);
         }
-        groundOverlays = handler.getResult();
     }
 
     public List<KMLGroundOverlay> getGroundOverlays() {
         return groundOverlays;
     }
+
+    /**
+     * Returns the name of the KML document in the archive, for KMZ files.
+     * The links of the overlays are relative to it.
+     *
+     * @return the entry name, or {@code null} for a KML file or if the archive could not be read
+     */
+    public String getDocumentName() {
+        return documentName;
+    }
+
+    /**
+     * Tells whether a file is a KMZ archive, from its extension.
+     *
+     * @param file the file
+     * @return {@code true} for a .kmz file
+     */
+    public static boolean isKmz(File file) {
+        return file.getName().toLowerCase(Locale.ROOT).endsWith(".kmz");
+    }
+
+    // The KML document of an archive is its first .kml file, usually doc.kml at the root
+    private static ZipEntry findDocument(ZipFile zipFile) {
+        ZipEntry first = null;
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory() || !entry.getName().toLowerCase(Locale.ROOT).endsWith(".kml")) {
+                continue;
+            }
+            if (entry.getName().indexOf('/') < 0) {
+                return entry;
+            }
+            if (first == null) {
+                first = entry;
+            }
+        }
+        return first;
+    }
 }
@@ -0,0 +1,241 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Renders the warped picture of a layer for a given map view in a worker thread.
+ * <p>
+ * The rendering goes to a back buffer which is swapped with the front buffer once
+ * complete. Painting on the EDT only draws the front buffer, shifted and scaled to
+ * the current view if it was rendered for a different one.
+ */
+public class BackgroundRenderer {
+
+    /**
+     * Draws the picture for the background renderer.
+     */
+    @FunctionalInterface
+    public interface PicturePainter {
+        /**
+         * Draws the picture.
+         *
+         * @param g     graphics with the device transform set
+         * @param chain transform from picture pixels to view pixels
+         * @param clip  the area of the view to draw, in view pixels
+         */
+        void paintPicture(Graphics2D g, AffineTransform chain, Rectangle clip);
+    }
+
+    private static final ExecutorService RENDERERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            Utils.newThreadFactory("piclayer-renderer-%d", Thread.NORM_PRIORITY));
+
+    /**
+     * What to render: the map view state and the picture transform at request time.
+     */
+    public static final class Request {
+        private final EastNorth topLeft;
+        private final double pixelPerEn;
+        private final int width;
+        private final int height;
+        private final double deviceScale;
+        private final AffineTransform chain;
+
+        /**
+         * Constructor
+         *
+         * @param topLeft     east/north of the top left corner of the view
+         * @param pixelPerEn  view pixels per east/north unit
+         * @param width       width of the view
+         * @param height      height of the view
+         * @param deviceScale device pixels per view pixel (HiDPI scaling)
+         * @param chain       transform from picture pixels to view pixels, copied
+         */
+        public Request(EastNorth topLeft, double pixelPerEn, int width, int height, double deviceScale, AffineTransform chain) {
+            this.topLeft = topLeft;
+            this.pixelPerEn = pixelPerEn;
+            this.width = width;
+            this.height = height;
+            this.deviceScale = deviceScale;
+            this.chain = new AffineTransform(chain);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Request r = (Request) o;
+            return Double.compare(r.pixelPerEn, pixelPerEn) == 0 && width == r.width && height == r.height
+                    && Double.compare(r.deviceScale, deviceScale) == 0
+                    && topLeft.east() == r.topLeft.east() && topLeft.north() == r.topLeft.north()
+                    && chain.equals(r.chain);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(pixelPerEn, width, height, deviceScale, chain);
+        }
+    }
+
+    private final PicturePainter painter;
+    private final Runnable onFrameReady;
+
+    // guarded by this
+    private Request requested;
+    private Request rendered;
+    private boolean running;
+    private boolean contentChanged;
+    private boolean disposed;
+
+    // guarded by this, swapped when a frame is complete
+    private BufferedImage front;
+    private BufferedImage back;
+    private Request frontRequest;
+
+    /**
+     * Constructor
+     *
+     * @param painter      draws the picture into the back buffer
+     * @param onFrameReady called from the worker thread when a new frame is available
+     */
+    public BackgroundRenderer(PicturePainter painter, Runnable onFrameReady) {
+        this.painter = painter;
+        this.onFrameReady = onFrameReady;
+    }
+
+    /**
+     * Asks for a frame to be rendered, unless the same frame is already being rendered.
+     *
+     * @param request the view and picture transform to render
+     */
+    public synchronized void request(Request request) {
+        if (disposed || (!contentChanged && request.equals(requested))) {
+            return;
+        }
+        requested = request;
+        contentChanged = false;
+        if (!running) {
+            running = true;
+            RENDERERS.execute(this::renderLoop);
+        }
+    }
+
+    /**
+     * Forces the next request to be rendered, even if it is equal to the previous one.
+     * To be called when the pixels of the picture changed.
+     */
+    public synchronized void contentChanged() {
+        contentChanged = true;
+    }
+
+    /**
+     * Draws the latest complete frame, transformed to the current view.
+     *
+     * @param g          graphics of the map view
+     * @param topLeft    east/north of the top left corner of the current view
+     * @param pixelPerEn view pixels per east/north unit of the current view
+     * @return {@code true} if a frame was drawn
+     */
+    public synchronized boolean drawLatestFrame(Graphics2D g, EastNorth topLeft, double pixelPerEn) {
+        if (front == null) {
+            return false;
+        }
+        Request f = frontRequest;
+        AffineTransform t = AffineTransform.getTranslateInstance(
+                (f.topLeft.east() - topLeft.east()) * pixelPerEn,
+                (topLeft.north() - f.topLeft.north()) * pixelPerEn);
+        double s = pixelPerEn / f.pixelPerEn / f.deviceScale;
+        t.scale(s, s);
+        Graphics2D gf = (Graphics2D) g.create();
+        try {
+            if (!t.isIdentity() || f.deviceScale != 1) {
+                gf.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+            gf.drawImage(front, t, null);
+        } finally {
+            gf.dispose();
+        }
+        return true;
+    }
+
+    /**
+     * Releases the buffers, once the layer is destroyed. Later requests are ignored, and a frame
+     * being rendered is dropped.
+     */
+    public synchronized void dispose() {
+        disposed = true;
+        front = null;
+        back = null;
+        frontRequest = null;
+        rendered = null;
+        requested = null;
+    }
+
+    private void renderLoop() {
+        while (true) {
+            Request r;
+            BufferedImage buffer;
+            synchronized (this) {
+                r = requested;
+                if (r == null || r == rendered) {
+                    running = false;
+                    return;
+                }
+                buffer = back;
+                back = null;
+            }
+            try {
+                buffer = render(r, buffer);
+            } catch (RuntimeException e) {
+                Logging.error(e);
+                synchronized (this) {
+                    rendered = r;
+                }
+                continue;
+            }
+            synchronized (this) {
+                if (disposed) {
+                    running = false;
+                    return;
+                }
+                back = front;
+                front = buffer;
+                frontRequest = r;
+                rendered = r;
+            }
+            onFrameReady.run();
+        }
+    }
+
+    private BufferedImage render(Request r, BufferedImage buffer) {
+        int w = Math.max(1, (int) Math.ceil(r.width * r.deviceScale));
+        int h = Math.max(1, (int) Math.ceil(r.height * r.deviceScale));
+        if (buffer == null || buffer.getWidth() != w || buffer.getHeight() != h) {
+            buffer = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB_PRE);
+        }
+        Graphics2D g = buffer.createGraphics();
+        try {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0, 0, w, h);
+            g.setComposite(AlphaComposite.SrcOver);
+            g.scale(r.deviceScale, r.deviceScale);
+            painter.paintPicture(g, r.chain, new Rectangle(0, 0, r.width, r.height));
+        } finally {
+            g.dispose();
+        }
+        return buffer;
+    }
+}
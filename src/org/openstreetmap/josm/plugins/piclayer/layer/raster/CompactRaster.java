@@ -0,0 +1,213 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+
+/**
+ * Stores pictures of 8 bits per sample in the smallest lossless pixel layout for their contents.
+ * <p>
+ * Decoders often return 32 bits per pixel even for scanned plans that only use black and
+ * white, or a few gray levels. The pixels are analyzed once: pictures with at most 256
+ * colors are stored with a color lookup table (packed 1, 2 or 4 bits per pixel, or 8 bits
+ * per pixel), other opaque pictures with 3 bytes per pixel. Gray pictures thus get a palette
+ * of their gray levels. The colors are looked up when the picture is drawn.
+ * <p>
+ * The pixels are read as 8 bit sRGB, so pictures with larger samples (16 bit or floating
+ * point) are kept as they are.
+ */
+public final class CompactRaster {
+
+    private static final int MAX_COLORS = 256;
+    // Open addressing table of the palette, at most one quarter full
+    private static final int TABLE_SIZE = 1024;
+    // Number of rows read at once
+    private static final int BAND_PIXELS = 1 << 16;
+
+    private CompactRaster() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Returns the picture in the smallest lossless layout, or the picture itself if it can not be made smaller
+     * or has more than 8 bits per sample.
+     *
+     * @param src the picture
+     * @return the compacted picture, or {@code src}
+     */
+    public static BufferedImage compact(BufferedImage src) {
+        if (src.getType() == BufferedImage.TYPE_BYTE_BINARY) {
+            return src;
+        }
+        for (int sampleSize : src.getSampleModel().getSampleSize()) {
+            if (sampleSize > 8) {
+                // Reading the pixels as sRGB would truncate them
+                return src;
+            }
+        }
+        int w = src.getWidth();
+        int h = src.getHeight();
+        int bandRows = Math.max(1, BAND_PIXELS / w);
+        int[] rgb = new int[bandRows * w];
+
+        // First pass: palette and transparency
+        int[] colors = new int[TABLE_SIZE];
+        int[] indexes = new int[TABLE_SIZE];
+        boolean[] used = new boolean[TABLE_SIZE];
+        int[] palette = new int[MAX_COLORS];
+        int count = 0;
+        boolean opaque = true;
+        int last = 0;
+        boolean hasLast = false;
+        for (int y = 0; y < h; y += bandRows) {
+            int n = Math.min(bandRows, h - y) * w;
+            src.getRGB(0, y, w, n / w, rgb, 0, w);
+            for (int i = 0; i < n; i++) {
+                int c = rgb[i];
+                if (hasLast && c == last) {
+                    continue;
+                }
+                last = c;
+                hasLast = true;
+                opaque &= (c >>> 24) == 0xff;
+                if (count <= MAX_COLORS && lookup(colors, used, c) < 0) {
+                    if (count < MAX_COLORS) {
+                        int slot = insert(colors, used, c);
+                        indexes[slot] = count;
+                        palette[count] = c;
+                    }
+                    count++;
+                }
+                if (count > MAX_COLORS && !opaque) {
+                    // Neither indexed nor without alpha, nothing to gain
+                    return src;
+                }
+            }
+        }
+
+        BufferedImage dst;
+        if (count <= MAX_COLORS) {
+            int bits = count <= 2 ? 1 : count <= 4 ? 2 : count <= 16 ? 4 : 8;
+            int size = Math.max(count, 2);
+            IndexColorModel cm = new IndexColorModel(bits, size, palette, 0, !opaque, -1, DataBuffer.TYPE_BYTE);
+            dst = new BufferedImage(w, h, bits < 8 ? BufferedImage.TYPE_BYTE_BINARY : BufferedImage.TYPE_BYTE_INDEXED, cm);
+        } else {
+            dst = new BufferedImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        if (getByteSize(dst) >= getByteSize(src)) {
+            return src;
+        }
+
+        // Second pass: copy the pixels
+        WritableRaster raster = dst.getRaster();
+        for (int y = 0; y < h; y += bandRows) {
+            int rows = Math.min(bandRows, h - y);
+            int n = rows * w;
+            src.getRGB(0, y, w, rows, rgb, 0, w);
+            if (count <= MAX_COLORS) {
+                int previous = 0;
+                int index = 0;
+                for (int i = 0; i < n; i++) {
+                    int c = rgb[i];
+                    if (i == 0 || c != previous) {
+                        index = indexes[lookup(colors, used, c)];
+                        previous = c;
+                    }
+                    rgb[i] = index;
+                }
+                writeIndexes(raster, dst.getColorModel().getPixelSize(), y, rows, rgb);
+            } else {
+                dst.setRGB(0, y, w, rows, rgb, 0, w);
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Writes palette indexes to the packed (1, 2 or 4 bits) or byte (8 bits) raster of an indexed picture.
+     */
+    private static void writeIndexes(WritableRaster raster, int bits, int y, int rows, int[] indexes) {
+        byte[] data = ((DataBufferByte) raster.getDataBuffer()).getData();
+        int w = raster.getWidth();
+        // Scanline strides of the sample models created by BufferedImage
+        int stride = (w * bits + 7) / 8;
+        int perByte = 8 / bits;
+        for (int r = 0; r < rows; r++) {
+            int offset = (y + r) * stride;
+            int base = r * w;
+            if (bits == 8) {
+                for (int x = 0; x < w; x++) {
+                    data[offset + x] = (byte) indexes[base + x];
+                }
+            } else {
+                for (int x = 0; x < w; x++) {
+                    int shift = 8 - bits * (x % perByte + 1);
+                    data[offset + x / perByte] |= (byte) (indexes[base + x] << shift);
+                }
+            }
+        }
+    }
+
+    private static int lookup(int[] colors, boolean[] used, int c) {
+        int slot = hash(c);
+        while (used[slot]) {
+            if (colors[slot] == c) {
+                return slot;
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    private static int insert(int[] colors, boolean[] used, int c) {
+        int slot = hash(c);
+        while (used[slot]) {
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        used[slot] = true;
+        colors[slot] = c;
+        return slot;
+    }
+
+    private static int hash(int c) {
+        return (c * 0x9e3779b9 >>> 22) & (TABLE_SIZE - 1);
+    }
+
+    /**
+     * Returns the number of bytes used by the pixels of a picture.
+     *
+     * @param image the picture
+     * @return the size of its pixel data, in bytes
+     */
+    public static long getByteSize(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        return (long) buffer.getSize() * buffer.getNumBanks() * DataBuffer.getDataTypeSize(buffer.getDataType()) / 8;
+    }
+
+    /**
+     * Returns a short description of the pixel layout of a picture.
+     *
+     * @param image the picture
+     * @return the layout, e.g. "1 bit indexed" or "24 bit RGB"
+     */
+    public static String describe(BufferedImage image) {
+        switch (image.getType()) {
+        case BufferedImage.TYPE_BYTE_BINARY:
+        case BufferedImage.TYPE_BYTE_INDEXED:
+            return image.getColorModel().getPixelSize() + " bit indexed";
+        case BufferedImage.TYPE_BYTE_GRAY:
+            return "8 bit gray";
+        case BufferedImage.TYPE_USHORT_GRAY:
+            return "16 bit gray";
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_BGR:
+            return "24 bit RGB";
+        default:
+            return image.getColorModel().getPixelSize() + (image.getColorModel().hasAlpha() ? " bit ARGB" : " bit");
+        }
+    }
+}
@@ -0,0 +1,144 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Keeps a pyramid level in memory as Deflate compressed tiles of {@link ImagePyramid#TILE_SIZE} pixels.
+ * <p>
+ * Only the tiles needed for painting are decompressed, see {@link TileStore}.
+ */
+public final class CompressedTileStore extends TileStore {
+
+    private final ColorModel colorModel;
+    private final boolean intPixels;
+    private final int columns;
+    private final byte[][] tiles;
+    private final long byteSize;
+
+    private CompressedTileStore(BufferedImage image, byte[][] tiles, long byteSize) {
+        super(image.getWidth(), image.getHeight());
+        this.colorModel = image.getColorModel();
+        this.intPixels = image.getRaster().getDataBuffer() instanceof DataBufferInt;
+        this.columns = (image.getWidth() + ImagePyramid.TILE_SIZE - 1) / ImagePyramid.TILE_SIZE;
+        this.tiles = tiles;
+        this.byteSize = byteSize;
+    }
+
+    /**
+     * Compresses a picture.
+     *
+     * @param image the picture, with {@code byte} or {@code int} pixel data
+     * @return the compressed tiles, or {@code null} if the picture can not be compressed or does not get smaller
+     */
+    public static CompressedTileStore compress(BufferedImage image) {
+        DataBuffer buffer = image.getRaster().getDataBuffer();
+        if (!(buffer instanceof DataBufferByte || buffer instanceof DataBufferInt) || buffer.getNumBanks() != 1) {
+            return null;
+        }
+        int ts = ImagePyramid.TILE_SIZE;
+        int columns = (image.getWidth() + ts - 1) / ts;
+        int rows = (image.getHeight() + ts - 1) / ts;
+        byte[][] tiles = new byte[columns * rows][];
+        long size = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            byte[] out = new byte[64 * 1024];
+            for (int row = 0; row < rows; row++) {
+                for (int col = 0; col < columns; col++) {
+                    int x = col * ts;
+                    int y = row * ts;
+                    WritableRaster tile = image.getColorModel().createCompatibleWritableRaster(
+                            Math.min(ts, image.getWidth() - x), Math.min(ts, image.getHeight() - y));
+                    tile.setDataElements(0, 0, image.getRaster().createChild(x, y, tile.getWidth(), tile.getHeight(), 0, 0, null));
+                    byte[] packed = deflate(deflater, toBytes(tile.getDataBuffer()), out);
+                    tiles[row * columns + col] = packed;
+                    size += packed.length;
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        if (size >= CompactRaster.getByteSize(image)) {
+            return null;
+        }
+        return new CompressedTileStore(image, tiles, size);
+    }
+
+    private static byte[] toBytes(DataBuffer buffer) {
+        if (buffer instanceof DataBufferByte) {
+            return ((DataBufferByte) buffer).getData();
+        }
+        int[] pixels = ((DataBufferInt) buffer).getData();
+        ByteBuffer bytes = ByteBuffer.allocate(pixels.length * 4);
+        bytes.asIntBuffer().put(pixels);
+        return bytes.array();
+    }
+
+    private static byte[] deflate(Deflater deflater, byte[] data, byte[] out) {
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+        ByteArrayOutputStream result = new ByteArrayOutputStream(data.length / 4);
+        while (!deflater.finished()) {
+            int n = deflater.deflate(out);
+            result.write(out, 0, n);
+        }
+        return result.toByteArray();
+    }
+
+    @Override
+    protected BufferedImage readTile(int col, int row) {
+        return inflate(col, row, tiles[row * columns + col]);
+    }
+
+    private BufferedImage inflate(int col, int row, byte[] packed) {
+        int ts = ImagePyramid.TILE_SIZE;
+        int w = Math.min(ts, getWidth() - col * ts);
+        int h = Math.min(ts, getHeight() - row * ts);
+        WritableRaster raster = colorModel.createCompatibleWritableRaster(w, h);
+        DataBuffer buffer = raster.getDataBuffer();
+        byte[] data = intPixels ? new byte[buffer.getSize() * 4] : ((DataBufferByte) buffer).getData();
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed);
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                n += inflater.inflate(data, n, data.length - n);
+                if (inflater.needsInput() || inflater.needsDictionary()) {
+                    break;
+                }
+            }
+            if (n != data.length) {
+                Logging.warn("Corrupted picture tile {0},{1}", col, row);
+                return null;
+            }
+        } catch (DataFormatException e) {
+            Logging.warn(e);
+            return null;
+        } finally {
+            inflater.end();
+        }
+        if (intPixels) {
+            ByteBuffer.wrap(data).asIntBuffer().get(((DataBufferInt) buffer).getData());
+        }
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public long getByteSize() {
+        return byteSize;
+    }
+}
@@ -0,0 +1,257 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * {@link ImageSource} keeping an {@link ImageReader} open on a picture file, or on a
+ * seekable stream, so that subsampled overviews and regions can be decoded without
+ * reading all the pixels.
+ * <p>
+ * Tiled TIFF files are decoded tile by tile by the reader, only the tiles intersecting the
+ * region are read. If the TIFF file has internal overviews (reduced resolution images, as
+ * in cloud optimized GeoTIFF files), the coarsest overview whose reduction factor divides
+ * the requested subsampling is decoded instead of the full resolution image, then subsampled
+ * by the remaining factor. Overviews that are not an integer reduction of the full resolution
+ * are ignored.
+ */
+public final class FileRegionDecoder implements ImageSource {
+
+    private final File file;
+    private final ImageInputStream iis;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+    // Image indexes, sizes and reduction factors of the internal overviews, finest first
+    private final int[] overviews;
+    private final int[] overviewWidths;
+    private final int[] overviewHeights;
+    private final int[] overviewFactors;
+
+    private FileRegionDecoder(File file, ImageInputStream iis, ImageReader reader) throws IOException {
+        this.file = file;
+        this.iis = iis;
+        this.reader = reader;
+        boolean tiff = GeoTiff.isTiff(reader);
+        // The overviews are other images of the file, which needs seeking backwards and the subfile type
+        reader.setInput(iis, !tiff, !tiff);
+        width = reader.getWidth(0);
+        height = reader.getHeight(0);
+
+        // Image index, width, height and reduction factor of each overview
+        List<int[]> found = new ArrayList<>();
+        if (tiff) {
+            int images = reader.getNumImages(true);
+            for (int i = 1; i < images; i++) {
+                int w = reader.getWidth(i);
+                int h = reader.getHeight(i);
+                int factor = getReductionFactor(w, h);
+                if (factor > 1 && GeoTiff.isOverview(reader, i)) {
+                    found.add(new int[] {i, w, h, factor});
+                }
+            }
+            found.sort((a, b) -> Integer.compare(a[3], b[3]));
+        }
+        overviews = new int[found.size()];
+        overviewWidths = new int[found.size()];
+        overviewHeights = new int[found.size()];
+        overviewFactors = new int[found.size()];
+        for (int i = 0; i < found.size(); i++) {
+            overviews[i] = found.get(i)[0];
+            overviewWidths[i] = found.get(i)[1];
+            overviewHeights[i] = found.get(i)[2];
+            overviewFactors[i] = found.get(i)[3];
+        }
+    }
+
+    /**
+     * Returns the integer factor by which an overview of the given size reduces the full resolution image.
+     *
+     * @return the factor, or 0 if the overview is not an integer reduction, up to the rounding of its size
+     */
+    private int getReductionFactor(int w, int h) {
+        if (w <= 0 || h <= 0 || w >= width || h >= height) {
+            return 0;
+        }
+        int factor = (int) Math.round((double) width / w);
+        if (factor < 2 || Math.abs(ceilDiv(width, factor) - w) > 1 || Math.abs(ceilDiv(height, factor) - h) > 1) {
+            return 0;
+        }
+        return factor;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+
+    /**
+     * Opens a picture file. Only the header is read.
+     *
+     * @param file the picture file
+     * @return the decoder, or {@code null} if no reader is able to decode the file
+     * @throws IOException in case of error
+     */
+    public static FileRegionDecoder open(File file) throws IOException {
+        if (!file.canRead()) {
+            throw new IIOException(tr("Can''t read input file!"));
+        }
+        ImageInputStream iis = ImageIO.createImageInputStream(file);
+        if (iis == null) {
+            return null;
+        }
+        return open(file, iis);
+    }
+
+    /**
+     * Opens a picture from a seekable stream. Only the header is read. The stream is
+     * closed with the decoder, or right away if the picture can not be decoded.
+     *
+     * @param iis the picture stream
+     * @return the decoder, or {@code null} if no reader is able to decode the stream
+     * @throws IOException in case of error
+     */
+    public static FileRegionDecoder open(ImageInputStream iis) throws IOException {
+        return open(null, iis);
+    }
+
+    private static FileRegionDecoder open(File file, ImageInputStream iis) throws IOException {
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                iis.close();
+                return null;
+            }
+            return new FileRegionDecoder(file, iis, readers.next());
+        } catch (IOException | RuntimeException e) {
+            iis.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getLevelCount() {
+        return 1 + overviews.length;
+    }
+
+    @Override
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the position in {@link #overviews} of the coarsest overview whose reduction factor
+     * divides {@code subsampling}, so that subsampling it gives exactly the requested scale.
+     *
+     * @return the position, -1 for the full resolution image
+     */
+    private int chooseOverview(int subsampling) {
+        int chosen = -1;
+        for (int i = 0; i < overviews.length; i++) {
+            if (subsampling % overviewFactors[i] == 0) {
+                chosen = i;
+            }
+        }
+        return chosen;
+    }
+
+    @Override
+    public synchronized BufferedImage readLevel(int level, ProgressMonitor monitor) throws IOException {
+        int subsampling = 1 << level;
+        int overview = chooseOverview(subsampling);
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (overview < 0) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return ImageDecoder.read(reader, 0, param, monitor);
+        }
+        int remaining = subsampling / overviewFactors[overview];
+        param.setSourceSubsampling(remaining, remaining, 0, 0);
+        return fitSize(ImageDecoder.read(reader, overviews[overview], param, monitor),
+                ceilDiv(width, subsampling), ceilDiv(height, subsampling));
+    }
+
+    @Override
+    public BufferedImage readRegion(int level, Rectangle region) throws IOException {
+        return decode(region, 1 << level);
+    }
+
+    @Override
+    public synchronized BufferedImage decode(Rectangle region, int subsampling) throws IOException {
+        int overview = chooseOverview(subsampling);
+        ImageReadParam param = reader.getDefaultReadParam();
+        if (overview < 0) {
+            param.setSourceRegion(region);
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        }
+        // Same region in the pixels of the overview, the factor divides the subsampling
+        int factor = overviewFactors[overview];
+        int x0 = Math.min(overviewWidths[overview] - 1, region.x / factor);
+        int y0 = Math.min(overviewHeights[overview] - 1, region.y / factor);
+        int x1 = Math.min(overviewWidths[overview], ceilDiv(region.x + region.width, factor));
+        int y1 = Math.min(overviewHeights[overview], ceilDiv(region.y + region.height, factor));
+        int remaining = subsampling / factor;
+        param.setSourceRegion(new Rectangle(x0, y0, Math.max(1, x1 - x0), Math.max(1, y1 - y0)));
+        param.setSourceSubsampling(remaining, remaining, 0, 0);
+        return fitSize(reader.read(overviews[overview], param),
+                ceilDiv(region.width, subsampling), ceilDiv(region.height, subsampling));
+    }
+
+    /**
+     * Gives a decoded overview the size expected by the callers. The overview and the full resolution
+     * image are the same picture at the same scale, but the size of the overview may be rounded
+     * differently: an extra row or column is cut, a missing one is copied from the last one.
+     */
+    private static BufferedImage fitSize(BufferedImage decoded, int w, int h) {
+        if (decoded.getWidth() == w && decoded.getHeight() == h) {
+            return decoded;
+        }
+        if (decoded.getWidth() >= w && decoded.getHeight() >= h) {
+            return decoded.getSubimage(0, 0, w, h);
+        }
+        WritableRaster src = decoded.getRaster();
+        int dw = Math.min(w, decoded.getWidth());
+        int dh = Math.min(h, decoded.getHeight());
+        WritableRaster raster = src.createCompatibleWritableRaster(w, h);
+        raster.setDataElements(0, 0, src.createChild(0, 0, dw, dh, 0, 0, null));
+        for (int x = dw; x < w; x++) {
+            raster.setDataElements(x, 0, src.createChild(dw - 1, 0, 1, dh, 0, 0, null));
+        }
+        for (int y = dh; y < h; y++) {
+            raster.setDataElements(0, y, raster.createChild(0, dh - 1, w, 1, 0, 0, null));
+        }
+        return new BufferedImage(decoded.getColorModel(), raster, decoded.isAlphaPremultiplied(), null);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        reader.dispose();
+        iis.close();
+    }
+}
@@ -0,0 +1,250 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.GeoTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.data.coor.EastNorth;
+import org.openstreetmap.josm.data.coor.LatLon;
+import org.openstreetmap.josm.data.projection.Projection;
+
+/**
+ * Reads the TIFF tags needed for pyramidal (cloud optimized style) TIFF files and for GeoTIFF calibration.
+ * <p>
+ * Only the georeferencing of the tags is supported: a ModelTransformation, or a ModelTiepoint
+ * with a ModelPixelScale. It is converted to the six parameters of a world file, which can be
+ * reprojected to the current projection with {@link #reprojectWorldFile}.
+ */
+public final class GeoTiff {
+
+    // GeoKeys, from the GeoKeyDirectory tag
+    private static final int GT_RASTER_TYPE_GEO_KEY = 1025;
+    private static final int RASTER_PIXEL_IS_POINT = 2;
+    private static final int GEOGRAPHIC_TYPE_GEO_KEY = 2048;
+    private static final int PROJECTED_CS_TYPE_GEO_KEY = 3072;
+    private static final int USER_DEFINED = 32767;
+
+    private final double[] worldFile;
+    private final String crsCode;
+
+    private GeoTiff(double[] worldFile, String crsCode) {
+        this.worldFile = worldFile;
+        this.crsCode = crsCode;
+    }
+
+    /**
+     * Reads the georeferencing of a TIFF file, from its first image. Only the header is read.
+     *
+     * @param file the TIFF file
+     * @return the georeferencing, or {@code null} if the file is not a GeoTIFF
+     * @throws IOException in case of error
+     */
+    public static GeoTiff read(File file) throws IOException {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(file)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                if (!isTiff(reader)) {
+                    return null;
+                }
+                reader.setInput(iis, true, false);
+                return read(getDirectory(reader, 0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static GeoTiff read(TIFFDirectory dir) {
+        if (dir == null) {
+            return null;
+        }
+        int rasterType = 0;
+        String crs = null;
+        TIFFField keys = dir.getTIFFField(GeoTIFFTagSet.TAG_GEO_KEY_DIRECTORY);
+        if (keys != null && keys.getCount() >= 4) {
+            int count = keys.getAsInt(3);
+            for (int k = 0; k < count && 4 + 4 * k + 3 < keys.getCount(); k++) {
+                int id = keys.getAsInt(4 + 4 * k);
+                int location = keys.getAsInt(4 + 4 * k + 1);
+                int value = keys.getAsInt(4 + 4 * k + 3);
+                if (location != 0) {
+                    // Value stored in another tag, none of the keys used here
+                    continue;
+                }
+                if (id == GT_RASTER_TYPE_GEO_KEY) {
+                    rasterType = value;
+                } else if (id == PROJECTED_CS_TYPE_GEO_KEY && value != USER_DEFINED) {
+                    crs = "EPSG:" + value;
+                } else if (id == GEOGRAPHIC_TYPE_GEO_KEY && value != USER_DEFINED && crs == null) {
+                    crs = "EPSG:" + value;
+                }
+            }
+        }
+        // World files give the center of the upper left pixel, GeoTIFF its corner unless PixelIsPoint
+        double shift = rasterType == RASTER_PIXEL_IS_POINT ? 0 : 0.5;
+
+        double[] wld;
+        TIFFField transformation = dir.getTIFFField(GeoTIFFTagSet.TAG_MODEL_TRANSFORMATION);
+        TIFFField tiepoint = dir.getTIFFField(GeoTIFFTagSet.TAG_MODEL_TIE_POINT);
+        TIFFField scale = dir.getTIFFField(GeoTIFFTagSet.TAG_MODEL_PIXEL_SCALE);
+        if (transformation != null && transformation.getCount() >= 16) {
+            double a = transformation.getAsDouble(0);
+            double b = transformation.getAsDouble(1);
+            double d = transformation.getAsDouble(3);
+            double e = transformation.getAsDouble(4);
+            double f = transformation.getAsDouble(5);
+            double h = transformation.getAsDouble(7);
+            wld = new double[] {a, e, b, f, d + (a + b) * shift, h + (e + f) * shift};
+        } else if (tiepoint != null && tiepoint.getCount() >= 6 && scale != null && scale.getCount() >= 2) {
+            double i = tiepoint.getAsDouble(0);
+            double j = tiepoint.getAsDouble(1);
+            double x = tiepoint.getAsDouble(3);
+            double y = tiepoint.getAsDouble(4);
+            double sx = scale.getAsDouble(0);
+            double sy = scale.getAsDouble(1);
+            wld = new double[] {sx, 0, 0, -sy, x + (shift - i) * sx, y - (shift - j) * sy};
+        } else {
+            return null;
+        }
+        return new GeoTiff(wld, crs);
+    }
+
+    /**
+     * Tells whether a reader decodes TIFF files.
+     *
+     * @param reader the reader
+     * @return {@code true} for a TIFF reader
+     */
+    static boolean isTiff(ImageReader reader) {
+        if (reader.getOriginatingProvider() == null) {
+            return false;
+        }
+        for (String name : reader.getOriginatingProvider().getFormatNames()) {
+            String n = name.toLowerCase(Locale.ROOT);
+            if ("tif".equals(n) || "tiff".equals(n)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether an image of a TIFF file is a reduced resolution version of the first one,
+     * as written for the internal overviews of pyramidal TIFF files.
+     *
+     * @param reader the TIFF reader, whose input is set
+     * @param index  the image index
+     * @return {@code true} for an overview, {@code false} for a page or a transparency mask
+     * @throws IOException in case of error
+     */
+    static boolean isOverview(ImageReader reader, int index) throws IOException {
+        TIFFDirectory dir = getDirectory(reader, index);
+        TIFFField type = dir != null ? dir.getTIFFField(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE) : null;
+        if (type == null) {
+            return false;
+        }
+        int value = type.getAsInt(0);
+        return (value & BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION) != 0
+                && (value & BaselineTIFFTagSet.NEW_SUBFILE_TYPE_TRANSPARENCY) == 0;
+    }
+
+    private static TIFFDirectory getDirectory(ImageReader reader, int index) throws IOException {
+        IIOMetadata metadata = reader.getImageMetadata(index);
+        return metadata != null ? TIFFDirectory.createFromMetadata(metadata) : null;
+    }
+
+    /**
+     * Returns the georeferencing as the six parameters of a world file.
+     *
+     * @return the pixel sizes, rotation terms and the center of the upper left pixel, in world file order
+     */
+    public double[] getWorldFile() {
+        return worldFile.clone();
+    }
+
+    /**
+     * Returns the coordinate system of the file.
+     *
+     * @return the code, e.g. "EPSG:2154", or {@code null} if not given or user defined
+     */
+    public String getCrsCode() {
+        return crsCode;
+    }
+
+    /**
+     * Converts world file parameters to another projection. The corners and the center of the
+     * picture are reprojected, then the affine transform closest to them (least squares) is kept:
+     * the picture is not warped, which is accurate as long as it is small compared to the
+     * distortion of the projections.
+     *
+     * @param worldFile the pixel sizes, rotation terms and center of the upper left pixel, in world file order
+     * @param from      the projection of {@code worldFile}
+     * @param to        the target projection
+     * @param width     the width of the picture, in pixels
+     * @param height    the height of the picture, in pixels
+     * @return the world file parameters in the target projection
+     */
+    public static double[] reprojectWorldFile(double[] worldFile, Projection from, Projection to, int width, int height) {
+        double[][] pixels = {{0, 0}, {width, 0}, {0, height}, {width, height}, {width / 2.0, height / 2.0}};
+        // Normal equations of the fit, for the easting and the northing
+        double[][] m = new double[3][3];
+        double[] be = new double[3];
+        double[] bn = new double[3];
+        for (double[] p : pixels) {
+            LatLon ll = from.eastNorth2latlon(new EastNorth(
+                    worldFile[0] * p[0] + worldFile[2] * p[1] + worldFile[4],
+                    worldFile[1] * p[0] + worldFile[3] * p[1] + worldFile[5]));
+            EastNorth en = to.latlon2eastNorth(ll);
+            double[] v = {p[0], p[1], 1};
+            for (int i = 0; i < 3; i++) {
+                for (int j = 0; j < 3; j++) {
+                    m[i][j] += v[i] * v[j];
+                }
+                be[i] += v[i] * en.east();
+                bn[i] += v[i] * en.north();
+            }
+        }
+        double[] e = solve(m, be);
+        double[] n = solve(m, bn);
+        return new double[] {e[0], n[0], e[1], n[1], e[2], n[2]};
+    }
+
+    /**
+     * Solves a 3x3 linear system by Cramer's rule.
+     */
+    private static double[] solve(double[][] m, double[] b) {
+        double det = det(m[0], m[1], m[2]);
+        double[] x = new double[3];
+        for (int k = 0; k < 3; k++) {
+            double[][] mk = new double[3][];
+            for (int i = 0; i < 3; i++) {
+                mk[i] = m[i].clone();
+                mk[i][k] = b[i];
+            }
+            x[k] = det(mk[0], mk[1], mk[2]) / det;
+        }
+        return x;
+    }
+
+    private static double det(double[] a, double[] b, double[] c) {
+        return a[0] * (b[1] * c[2] - b[2] * c[1]) - a[1] * (b[0] * c[2] - b[2] * c[0]) + a[2] * (b[0] * c[1] - b[1] * c[0]);
+    }
+}
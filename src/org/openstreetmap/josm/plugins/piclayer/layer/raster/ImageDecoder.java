@@ -0,0 +1,187 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOException;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Decodes pictures with an {@link ImageReader}, reporting the progress to a {@link ProgressMonitor}
+ * and aborting the decoding when the monitor is canceled.
+ */
+public final class ImageDecoder {
+
+    private ImageDecoder() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Decodes the first picture of the given input.
+     *
+     * @param input   a {@link File}, an {@link java.io.InputStream} or anything else supported by
+     *                {@link ImageIO#createImageInputStream(Object)}
+     * @param monitor the progress monitor
+     * @return the picture, or {@code null} if no reader is able to decode the input
+     * @throws InterruptedIOException if the monitor was canceled
+     * @throws IOException in case of error
+     */
+    public static BufferedImage read(Object input, ProgressMonitor monitor) throws IOException {
+        if (input instanceof File && !((File) input).canRead()) {
+            throw new IIOException(tr("Can''t read input file!"));
+        }
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return read(reader, 0, reader.getDefaultReadParam(), monitor);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Reads the size of the first picture of the given input, from its header only.
+     *
+     * @param input a {@link File}, an {@link ImageInputStream}, an {@link java.io.InputStream} or anything
+     *              else supported by {@link ImageIO#createImageInputStream(Object)}
+     * @return the size of the picture, or {@code null} if no reader is able to decode the input
+     * @throws IOException in case of error
+     */
+    public static Dimension probeSize(Object input) throws IOException {
+        if (input instanceof File && !((File) input).canRead()) {
+            throw new IIOException(tr("Can''t read input file!"));
+        }
+        try (ImageInputStream iis = input instanceof ImageInputStream
+                ? (ImageInputStream) input : ImageIO.createImageInputStream(input)) {
+            if (iis == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decodes a picture of a reader whose input is set.
+     *
+     * @param reader     the reader
+     * @param imageIndex the index of the picture, 0 for the first one
+     * @param param      the read parameters (subsampling, region...)
+     * @param monitor    the progress monitor
+     * @return the picture
+     * @throws InterruptedIOException if the monitor was canceled
+     * @throws IOException in case of error
+     */
+    static BufferedImage read(ImageReader reader, int imageIndex, ImageReadParam param, ProgressMonitor monitor)
+            throws IOException {
+        monitor.beginTask(tr("Decoding image"), 100);
+        ProgressListener listener = new ProgressListener(monitor);
+        reader.addIIOReadProgressListener(listener);
+        try {
+            BufferedImage image = reader.read(imageIndex, param);
+            if (listener.aborted) {
+                throw new InterruptedIOException(tr("Loading of the image was canceled"));
+            }
+            return image;
+        } finally {
+            reader.removeIIOReadProgressListener(listener);
+            monitor.finishTask();
+        }
+    }
+
+    /**
+     * Forwards the reader progress to a {@link ProgressMonitor}, aborts the reader if the monitor is canceled.
+     */
+    private static class ProgressListener implements IIOReadProgressListener {
+        private final ProgressMonitor monitor;
+        private int reported;
+        private volatile boolean aborted;
+
+        ProgressListener(ProgressMonitor monitor) {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void imageProgress(ImageReader source, float percentageDone) {
+            int percent = Math.min(100, (int) percentageDone);
+            if (percent > reported) {
+                monitor.worked(percent - reported);
+                reported = percent;
+            }
+            if (monitor.isCanceled()) {
+                source.abort();
+            }
+        }
+
+        @Override
+        public void readAborted(ImageReader source) {
+            aborted = true;
+        }
+
+        @Override
+        public void sequenceStarted(ImageReader source, int minIndex) {
+            // Do nothing
+        }
+
+        @Override
+        public void sequenceComplete(ImageReader source) {
+            // Do nothing
+        }
+
+        @Override
+        public void imageStarted(ImageReader source, int imageIndex) {
+            // Do nothing
+        }
+
+        @Override
+        public void imageComplete(ImageReader source) {
+            // Do nothing
+        }
+
+        @Override
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+            // Do nothing
+        }
+
+        @Override
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+            // Do nothing
+        }
+
+        @Override
+        public void thumbnailComplete(ImageReader source) {
+            // Do nothing
+        }
+    }
+}
@@ -0,0 +1,609 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Multi-resolution representation (mip-map) of a picture.
+ * <p>
+ * Level 0 is the picture itself, every following level is half the size of the
+ * previous one. The coarser levels are computed lazily in the background the first
+ * time they are requested; until then the finest available level is returned.
+ * <p>
+ * Every level is split into square tiles of {@link #TILE_SIZE} pixels, so that only
+ * the visible part of a level needs to be drawn.
+ * <p>
+ * Pictures too large to be held in memory start with a subsampled overview instead of
+ * level 0. The levels finer than the overview are then decoded tile by tile on demand
+ * by a {@link RegionDecoder}, and a bounded number of these tiles is cached.
+ * <p>
+ * All levels and tiles of 8 bits per sample are stored in the smallest lossless pixel layout,
+ * see {@link CompactRaster}.
+ * Once built, the levels can also be kept as compressed tiles, see {@link #compressLevels()}.
+ */
+public class ImagePyramid {
+
+    /** Width and height of a tile, in pixels of its level */
+    public static final int TILE_SIZE = 512;
+
+    // Levels smaller than this (in both directions) are not computed any more
+    private static final int MIN_LEVEL_SIZE = 256;
+
+    // Preference: number of decoded tiles kept for the levels finer than the overview
+    private static final String PREF_REGION_CACHE_TILES = "piclayer.decode.region-cache-tiles";
+    // Tiles requested but not decoded yet, older requests are dropped
+    private static final int MAX_PENDING_TILES = 256;
+
+    private static final ExecutorService BUILDER = Executors.newSingleThreadExecutor(
+            Utils.newThreadFactory("piclayer-pyramid-%d", Thread.MIN_PRIORITY));
+
+    private static final ExecutorService REGION_DECODERS = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            Utils.newThreadFactory("piclayer-region-%d", Thread.NORM_PRIORITY));
+
+    // In memory levels, starting with firstLevel, null for the compressed levels
+    private final List<BufferedImage> levels = new CopyOnWriteArrayList<>();
+    // Levels held as packed tiles, by level index
+    private final Map<Integer, TileStore> packedLevels = new ConcurrentHashMap<>();
+    private final String pixelFormat;
+    private final int firstLevel;
+    private final int baseWidth;
+    private final int baseHeight;
+    private final int levelCount;
+    private final Runnable onLevelAdded;
+    private Future<?> build;
+    private Future<?> store;
+    private Future<?> compress;
+
+    // Decoder of the levels finer than firstLevel, null if the picture is completely in memory
+    private final RegionDecoder decoder;
+    // Decoded tiles of the levels finer than firstLevel, guarded by itself, in access order
+    private final Map<Long, BufferedImage> regionTiles = new LinkedHashMap<>(16, 0.75f, true);
+    // Requested tiles, guarded by regionTiles, the last one is decoded first
+    private final LinkedHashSet<Long> pendingTiles = new LinkedHashSet<>();
+    private boolean decoding;
+    private volatile boolean canceled;
+
+    /**
+     * Constructor
+     *
+     * @param base         the full resolution picture (level 0)
+     * @param onLevelAdded called from the builder thread whenever a new level is available
+     */
+    public ImagePyramid(BufferedImage base, Runnable onLevelAdded) {
+        this(base, 0, base.getWidth(), base.getHeight(), null, onLevelAdded);
+    }
+
+    /**
+     * Constructor for a picture that is only held in memory as a subsampled overview.
+     *
+     * @param overview     the picture at level {@code firstLevel}, i.e. subsampled by {@code 2^firstLevel}
+     * @param firstLevel   the level of the overview
+     * @param width        the width of the picture at full resolution
+     * @param height       the height of the picture at full resolution
+     * @param decoder      the decoder of the finer levels, may be {@code null}
+     * @param onLevelAdded called from a worker thread whenever a new level or tile is available
+     */
+    public ImagePyramid(BufferedImage overview, int firstLevel, int width, int height, RegionDecoder decoder,
+                        Runnable onLevelAdded) {
+        this.onLevelAdded = onLevelAdded;
+        this.firstLevel = firstLevel;
+        this.decoder = decoder;
+        levels.add(CompactRaster.compact(overview));
+        pixelFormat = CompactRaster.describe(levels.get(0));
+        baseWidth = width;
+        baseHeight = height;
+        levelCount = Math.max(firstLevel + 1, computeLevelCount(baseWidth, baseHeight));
+    }
+
+    /**
+     * Constructor for a picture whose levels were already computed, e.g. mapped from the {@link PyramidDiskCache}.
+     * The levels stay where they are and are read tile by tile, except the coarsest one, which is unpacked.
+     *
+     * @param stored       the levels, starting with {@code firstLevel}
+     * @param firstLevel   the level of the first store of {@code stored}
+     * @param width        the width of the picture at full resolution
+     * @param height       the height of the picture at full resolution
+     * @param decoder      the decoder of the finer levels, may be {@code null}
+     * @param onLevelAdded called from a worker thread whenever a new level or tile is available
+     * @throws IOException if the coarsest level cannot be unpacked
+     */
+    public ImagePyramid(List<? extends TileStore> stored, int firstLevel, int width, int height, RegionDecoder decoder,
+                        Runnable onLevelAdded) throws IOException {
+        this.onLevelAdded = onLevelAdded;
+        this.firstLevel = firstLevel;
+        this.decoder = decoder;
+        for (int i = 0; i < stored.size() - 1; i++) {
+            packedLevels.put(firstLevel + i, stored.get(i));
+            levels.add(null);
+        }
+        BufferedImage coarsest = stored.get(stored.size() - 1).toImage();
+        if (coarsest == null) {
+            throw new IOException(tr("The cached picture is corrupted"));
+        }
+        levels.add(coarsest);
+        pixelFormat = stored.get(0).getPixelFormat();
+        baseWidth = width;
+        baseHeight = height;
+        levelCount = Math.max(firstLevel + 1, computeLevelCount(baseWidth, baseHeight));
+    }
+
+    /**
+     * Returns the number of levels of a pyramid for a picture of the given size.
+     *
+     * @param width  width of level 0
+     * @param height height of level 0
+     * @return the number of levels, at least 1
+     */
+    public static int computeLevelCount(int width, int height) {
+        int count = 1;
+        while (width > MIN_LEVEL_SIZE || height > MIN_LEVEL_SIZE) {
+            width = Math.max(1, (width + 1) / 2);
+            height = Math.max(1, (height + 1) / 2);
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the level whose resolution is closest to, but not coarser than, the given scale.
+     *
+     * @param scale number of screen pixels for one pixel of level 0
+     * @return the level index, in the range [0, levelCount)
+     */
+    public int chooseLevel(double scale) {
+        if (scale <= 0 || Double.isNaN(scale) || scale >= 1)
+            return 0;
+        int level = (int) Math.floor(-Math.log(scale) / Math.log(2));
+        return Math.min(level, levelCount - 1);
+    }
+
+    /**
+     * Returns the finest level that has at most the given number of pixels.
+     *
+     * @param maxPixels the maximum number of pixels
+     * @return the level index, in the range [0, levelCount)
+     */
+    public int chooseLevelForPixels(long maxPixels) {
+        return Math.min(levelForPixels(baseWidth, baseHeight, maxPixels), levelCount - 1);
+    }
+
+    /**
+     * Returns the first level of a picture of the given size that has at most the given number of pixels.
+     *
+     * @param width     width of level 0
+     * @param height    height of level 0
+     * @param maxPixels the maximum number of pixels
+     * @return the level index, the subsampling factor of this level is {@code 2^level}
+     */
+    public static int levelForPixels(int width, int height, long maxPixels) {
+        long w = width;
+        long h = height;
+        int level = 0;
+        while (w * h > maxPixels && (w > 1 || h > 1)) {
+            w = Math.max(1, (w + 1) / 2);
+            h = Math.max(1, (h + 1) / 2);
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the finest level that is available and not finer than requested.
+     * Starts building the missing levels in the background if needed. Levels finer
+     * than the overview are available if there is a decoder, but their tiles are
+     * only decoded on demand, see {@link #getTile(int, int, int)}.
+     *
+     * @param level the wanted level
+     * @return the index of an available level, at most {@code level}
+     */
+    public int requestLevel(int level) {
+        if (level < firstLevel) {
+            return decoder != null ? level : firstLevel;
+        }
+        int available = firstLevel + levels.size() - 1;
+        if (level > available) {
+            startBuild();
+            return available;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the finest level that is held in memory.
+     *
+     * @return the level of the overview, 0 if the picture is held at full resolution
+     */
+    public int getFirstLevel() {
+        return firstLevel;
+    }
+
+    /**
+     * Tells whether the given level is held in memory as a whole, or decoded or decompressed tile by tile.
+     *
+     * @param level the level index
+     * @return {@code true} if {@link #getLevel(int)} can be called for this level, once available
+     */
+    public boolean isInMemory(int level) {
+        return level >= firstLevel && !packedLevels.containsKey(level);
+    }
+
+    /**
+     * Returns the picture of the given level. The level must be available and in memory.
+     *
+     * @param level the level index
+     * @return the picture of this level, or {@code null} if the level was compressed meanwhile
+     * @see #requestLevel(int)
+     * @see #isInMemory(int)
+     */
+    public BufferedImage getLevel(int level) {
+        return levels.get(level - firstLevel);
+    }
+
+    /**
+     * Returns the coarsest level that is available. It is never compressed.
+     *
+     * @return a small version of the picture
+     */
+    public BufferedImage getPreview() {
+        return levels.get(levels.size() - 1);
+    }
+
+    /**
+     * Returns the level of {@link #getPreview()}.
+     *
+     * @return the coarsest available level
+     */
+    public int getPreviewLevel() {
+        return firstLevel + levels.size() - 1;
+    }
+
+    /**
+     * Returns the width of the given level.
+     *
+     * @param level the level index
+     * @return the width, in pixels of this level
+     */
+    public int getLevelWidth(int level) {
+        return levelSize(baseWidth, level);
+    }
+
+    /**
+     * Returns the height of the given level.
+     *
+     * @param level the level index
+     * @return the height, in pixels of this level
+     */
+    public int getLevelHeight(int level) {
+        return levelSize(baseHeight, level);
+    }
+
+    private static int levelSize(int size, int level) {
+        for (int i = 0; i < level; i++) {
+            size = Math.max(1, (size + 1) / 2);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of tile columns of the given level.
+     *
+     * @param level the level index
+     * @return the number of tile columns
+     */
+    public int getTileColumns(int level) {
+        return (getLevelWidth(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Returns the number of tile rows of the given level.
+     *
+     * @param level the level index
+     * @return the number of tile rows
+     */
+    public int getTileRows(int level) {
+        return (getLevelHeight(level) + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    /**
+     * Returns a tile of the given level. The level must be available. Tiles of in memory
+     * levels share their pixels with the level, tiles at the right and bottom border may
+     * be smaller than {@link #TILE_SIZE}.
+     * <p>
+     * Tiles of the levels finer than the overview are decoded in the background: if the
+     * tile is not decoded yet, it is requested and {@code null} is returned. Without a
+     * decoder, e.g. once the pixels were released, they are never available.
+     *
+     * @param level the level index
+     * @param col   the tile column
+     * @param row   the tile row
+     * @return the tile, or {@code null} if it is being decoded
+     */
+    public BufferedImage getTile(int level, int col, int row) {
+        if (level < firstLevel) {
+            return getRegionTile(level, col, row);
+        }
+        BufferedImage img = getLevel(level);
+        if (img == null) {
+            return packedLevels.get(level).getTile(col, row);
+        }
+        int x = col * TILE_SIZE;
+        int y = row * TILE_SIZE;
+        return img.getSubimage(x, y, Math.min(TILE_SIZE, img.getWidth() - x), Math.min(TILE_SIZE, img.getHeight() - y));
+    }
+
+    private BufferedImage getRegionTile(int level, int col, int row) {
+        Long key = ((long) level << 56) | ((long) row << 28) | col;
+        synchronized (regionTiles) {
+            BufferedImage tile = regionTiles.get(key);
+            if (tile == null && !canceled && decoder != null) {
+                // Move the request to the end, so that it is decoded first
+                pendingTiles.remove(key);
+                pendingTiles.add(key);
+                if (pendingTiles.size() > MAX_PENDING_TILES) {
+                    Iterator<Long> it = pendingTiles.iterator();
+                    it.next();
+                    it.remove();
+                }
+                if (!decoding) {
+                    decoding = true;
+                    REGION_DECODERS.execute(this::decodeRegionTiles);
+                }
+            }
+            return tile;
+        }
+    }
+
+    private void decodeRegionTiles() {
+        while (true) {
+            long key;
+            synchronized (regionTiles) {
+                if (pendingTiles.isEmpty() || canceled) {
+                    decoding = false;
+                    return;
+                }
+                Iterator<Long> it = pendingTiles.iterator();
+                Long last = null;
+                while (it.hasNext()) {
+                    last = it.next();
+                }
+                pendingTiles.remove(last);
+                key = last;
+            }
+            int level = (int) (key >>> 56);
+            int row = (int) ((key >>> 28) & 0xfffffff);
+            int col = (int) (key & 0xfffffff);
+            int subsampling = 1 << level;
+            int span = TILE_SIZE * subsampling;
+            Rectangle region = new Rectangle(col * span, row * span,
+                    Math.min(span, baseWidth - col * span), Math.min(span, baseHeight - row * span));
+            BufferedImage tile;
+            try {
+                tile = CompactRaster.compact(decoder.decode(region, subsampling));
+            } catch (IOException | RuntimeException e) {
+                if (!canceled) {
+                    Logging.warn(e);
+                }
+                continue;
+            }
+            int maxTiles = Math.max(1, Config.getPref().getInt(PREF_REGION_CACHE_TILES, 64));
+            synchronized (regionTiles) {
+                regionTiles.put(key, tile);
+                Iterator<BufferedImage> it = regionTiles.values().iterator();
+                while (regionTiles.size() > maxTiles) {
+                    it.next();
+                    it.remove();
+                }
+            }
+            onLevelAdded.run();
+        }
+    }
+
+    /**
+     * Returns the number of levels, once the pyramid is completely built.
+     *
+     * @return the number of levels
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * Returns the pixel layout of the picture, as held in memory.
+     *
+     * @return a short description of the layout of the finest in-memory level
+     * @see CompactRaster#describe(BufferedImage)
+     */
+    public String getPixelFormat() {
+        return pixelFormat;
+    }
+
+    /**
+     * Returns the memory used by the pixels of the in-memory levels and of the cached tiles.
+     *
+     * @return the size, in bytes
+     */
+    public long getByteSize() {
+        long size = 0;
+        for (BufferedImage level : levels) {
+            if (level != null) {
+                size += CompactRaster.getByteSize(level);
+            }
+        }
+        for (TileStore level : packedLevels.values()) {
+            size += level.getByteSize();
+        }
+        synchronized (regionTiles) {
+            for (BufferedImage tile : regionTiles.values()) {
+                size += CompactRaster.getByteSize(tile);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Stops the background computation, if any, and closes the decoder.
+     */
+    public synchronized void cancel() {
+        canceled = true;
+        if (build != null) {
+            build.cancel(true);
+        }
+        if (store != null) {
+            store.cancel(true);
+        }
+        if (compress != null) {
+            compress.cancel(true);
+        }
+        for (TileStore level : packedLevels.values()) {
+            level.dispose();
+        }
+        synchronized (regionTiles) {
+            pendingTiles.clear();
+            regionTiles.clear();
+        }
+        if (decoder != null) {
+            // Not in the calling thread, closing waits for the tile being decoded
+            REGION_DECODERS.execute(() -> {
+                try {
+                    decoder.close();
+                } catch (IOException e) {
+                    Logging.warn(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Builds all the missing levels in the background, then passes the in-memory levels to the given consumer,
+     * in the builder thread.
+     *
+     * @param onComplete receives the in-memory levels, starting with {@link #getFirstLevel()}
+     */
+    public synchronized void whenComplete(Consumer<List<BufferedImage>> onComplete) {
+        if (canceled) {
+            return;
+        }
+        store = BUILDER.submit(() -> {
+            buildLevels();
+            if (firstLevel + levels.size() == levelCount && !Thread.currentThread().isInterrupted()) {
+                onComplete.accept(new ArrayList<>(levels));
+            }
+        });
+    }
+
+    /**
+     * Builds all the missing levels in the background, then keeps the levels larger than a tile
+     * as compressed tiles, see {@link CompressedTileStore}. The coarsest level stays uncompressed.
+     * Called after {@link #whenComplete(Consumer)}, the levels are compressed once they are passed
+     * to its consumer.
+     */
+    public synchronized void compressLevels() {
+        if (canceled || compress != null) {
+            return;
+        }
+        compress = BUILDER.submit(() -> {
+            buildLevels();
+            boolean changed = false;
+            for (int i = 0; i < levels.size() - 1 && !Thread.currentThread().isInterrupted(); i++) {
+                BufferedImage level = levels.get(i);
+                if (level != null && (level.getWidth() > TILE_SIZE || level.getHeight() > TILE_SIZE)) {
+                    CompressedTileStore packed = CompressedTileStore.compress(level);
+                    if (packed != null) {
+                        // Published before the level is removed, for the painting threads
+                        packedLevels.put(firstLevel + i, packed);
+                        levels.set(i, null);
+                        changed = true;
+                    }
+                }
+            }
+            if (changed) {
+                onLevelAdded.run();
+            }
+        });
+    }
+
+    private synchronized void startBuild() {
+        if (build == null) {
+            build = BUILDER.submit(this::buildLevels);
+        }
+    }
+
+    private void buildLevels() {
+        try {
+            while (firstLevel + levels.size() < levelCount && !Thread.currentThread().isInterrupted()) {
+                levels.add(CompactRaster.compact(halve(levels.get(levels.size() - 1))));
+                onLevelAdded.run();
+            }
+        } catch (RuntimeException e) {
+            Logging.error(e);
+        }
+    }
+
+    /**
+     * Scales a picture down to half its size, rounded up. Bilinear interpolation samples
+     * between the source pixels, which only approximates the average of 2x2 source pixels:
+     * the result depends on the fixed point arithmetic of the renderer, and pictures of odd
+     * size are scaled by slightly more than one half.
+     *
+     * @param src the picture
+     * @return the picture at half resolution
+     */
+    static BufferedImage halve(BufferedImage src) {
+        int w = Math.max(1, (src.getWidth() + 1) / 2);
+        int h = Math.max(1, (src.getHeight() + 1) / 2);
+        BufferedImage dst = new BufferedImage(w, h, src.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(src, 0, 0, w, h, null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    /**
+     * Returns the given picture as {@link BufferedImage}, copying it only if needed.
+     *
+     * @param image a completely loaded picture
+     * @return the picture as {@code BufferedImage}
+     */
+    public static BufferedImage toBufferedImage(Image image) {
+        if (image instanceof BufferedImage) {
+            return (BufferedImage) image;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(null), image.getHeight(null), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return result;
+    }
+}
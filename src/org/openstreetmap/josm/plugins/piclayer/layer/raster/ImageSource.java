@@ -0,0 +1,92 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.openstreetmap.josm.gui.progress.ProgressMonitor;
+
+/**
+ * Source of the pixels of a picture layer, read by region and by resolution level.
+ * <p>
+ * Level {@code n} has {@code 1 / 2^n} of the full resolution pixels in each direction. A source
+ * can read any level, some of them store several levels (e.g. the internal overviews of a
+ * TIFF file) and read them without decoding the full resolution. The layer only reads a
+ * coarse level when the picture is loaded, and keeps the source open to read the regions of
+ * the finer levels on demand when zooming in.
+ * <p>
+ * Sources holding a fully decoded picture, see {@link WholeImageSource}, do not save any
+ * memory by reading regions: their picture is loaded at full resolution.
+ */
+public interface ImageSource extends RegionDecoder {
+
+    /**
+     * Returns the number of resolution levels stored in the source.
+     *
+     * @return 1 if only the full resolution is stored, more if the source has overviews
+     */
+    int getLevelCount();
+
+    /**
+     * Reads a region of the picture at the given level. May be called from any thread.
+     *
+     * @param level  the resolution level, 0 for the full resolution
+     * @param region the region, in full resolution pixels
+     * @return the pixels, of size {@code ceil(region.width / 2^level) x ceil(region.height / 2^level)}
+     * @throws IOException in case of error
+     */
+    BufferedImage readRegion(int level, Rectangle region) throws IOException;
+
+    /**
+     * Reads the whole picture at the given level.
+     *
+     * @param level   the resolution level, 0 for the full resolution
+     * @param monitor the progress monitor, reading is aborted when it is canceled
+     * @return the picture
+     * @throws java.io.InterruptedIOException if the monitor was canceled
+     * @throws IOException in case of error
+     */
+    default BufferedImage readLevel(int level, ProgressMonitor monitor) throws IOException {
+        return readRegion(level, new Rectangle(getWidth(), getHeight()));
+    }
+
+    /**
+     * Tells whether regions can be read without holding the whole picture in memory.
+     *
+     * @return {@code true} if the full resolution can be read on demand
+     */
+    default boolean canReadRegions() {
+        return true;
+    }
+
+    /**
+     * Tells whether only an overview should be read when the picture is loaded, whatever its size,
+     * e.g. because reading the full resolution is slow.
+     *
+     * @return {@code true} if the full resolution should be read region by region, {@code false} by default
+     */
+    default boolean prefersRegions() {
+        return false;
+    }
+
+    /**
+     * Returns the file the picture is read from, used as key of the {@link PyramidDiskCache}.
+     *
+     * @return the picture file, or {@code null} if the picture does not come from a plain file
+     */
+    default File getFile() {
+        return null;
+    }
+
+    @Override
+    default BufferedImage decode(Rectangle region, int subsampling) throws IOException {
+        return readRegion(Integer.numberOfTrailingZeros(subsampling), region);
+    }
+
+    @Override
+    default void close() throws IOException {
+        // Nothing to release
+    }
+}
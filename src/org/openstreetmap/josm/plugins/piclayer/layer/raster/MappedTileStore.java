@@ -0,0 +1,148 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+
+/**
+ * Pyramid level mapped from a {@link PyramidDiskCache} file.
+ * <p>
+ * The tiles are stored one after the other, row by row, each in the pixel layout of a
+ * standard {@link BufferedImage} type, i.e. the compact layouts of {@link CompactRaster}
+ * or 32 bit RGB. Painting a tile only copies it out of the mapping, the level does not
+ * use any heap memory.
+ */
+final class MappedTileStore extends TileStore {
+
+    private final ByteBuffer data;
+    private final int type;
+    private final IndexColorModel palette;
+    private final int[] offsets;
+
+    /**
+     * Constructor
+     *
+     * @param data    the tiles, e.g. mapped from the cache file
+     * @param width   the width of the level
+     * @param height  the height of the level
+     * @param type    the {@link BufferedImage} type of the tiles
+     * @param palette the palette of indexed tiles, {@code null} for the other types
+     */
+    MappedTileStore(ByteBuffer data, int width, int height, int type, IndexColorModel palette) {
+        super(width, height);
+        this.data = data;
+        this.type = type;
+        this.palette = palette;
+        int ts = ImagePyramid.TILE_SIZE;
+        int columns = (width + ts - 1) / ts;
+        int rows = (height + ts - 1) / ts;
+        offsets = new int[columns * rows + 1];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < columns; col++) {
+                int i = row * columns + col;
+                offsets[i + 1] = offsets[i] + (int) getTileByteSize(type, palette,
+                        Math.min(ts, width - col * ts), Math.min(ts, height - row * ts));
+            }
+        }
+    }
+
+    /**
+     * Returns the size of the pixel data of a tile.
+     *
+     * @param type    the {@link BufferedImage} type of the tile
+     * @param palette the palette of indexed tiles, {@code null} for the other types
+     * @param w       the width of the tile
+     * @param h       the height of the tile
+     * @return the size, in bytes
+     */
+    static long getTileByteSize(int type, IndexColorModel palette, int w, int h) {
+        switch (type) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+            return 4L * w * h;
+        case BufferedImage.TYPE_3BYTE_BGR:
+            return 3L * w * h;
+        case BufferedImage.TYPE_BYTE_BINARY:
+            // Scanline stride of the packed sample model created by BufferedImage
+            return (long) ((w * getPackedBits(palette) + 7) / 8) * h;
+        default:
+            return (long) w * h;
+        }
+    }
+
+    /**
+     * Returns the number of bits per pixel of a {@link BufferedImage#TYPE_BYTE_BINARY} picture created with a palette.
+     *
+     * @param palette the palette
+     * @return 1, 2 or 4 bits, depending on the size of the palette
+     */
+    static int getPackedBits(IndexColorModel palette) {
+        int size = palette.getMapSize();
+        return size <= 2 ? 1 : size <= 4 ? 2 : 4;
+    }
+
+    /**
+     * Creates an empty tile.
+     *
+     * @param type    the {@link BufferedImage} type of the tile
+     * @param palette the palette of indexed tiles, {@code null} for the other types
+     * @param w       the width of the tile
+     * @param h       the height of the tile
+     * @return the tile
+     */
+    static BufferedImage createTile(int type, IndexColorModel palette, int w, int h) {
+        return palette != null ? new BufferedImage(w, h, type, palette) : new BufferedImage(w, h, type);
+    }
+
+    /**
+     * Tells whether tiles of the given picture can be stored without conversion.
+     *
+     * @param image the picture
+     * @return {@code true} for the standard types with a single bank of {@code byte} or {@code int} pixels
+     */
+    static boolean isSupported(BufferedImage image) {
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_RGB:
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_3BYTE_BGR:
+        case BufferedImage.TYPE_BYTE_GRAY:
+            return true;
+        case BufferedImage.TYPE_BYTE_BINARY:
+            return image.getColorModel() instanceof IndexColorModel
+                    && getPackedBits((IndexColorModel) image.getColorModel()) == image.getColorModel().getPixelSize();
+        case BufferedImage.TYPE_BYTE_INDEXED:
+            return image.getColorModel() instanceof IndexColorModel;
+        default:
+            return false;
+        }
+    }
+
+    @Override
+    protected BufferedImage readTile(int col, int row) {
+        int ts = ImagePyramid.TILE_SIZE;
+        int w = Math.min(ts, getWidth() - col * ts);
+        int h = Math.min(ts, getHeight() - row * ts);
+        BufferedImage tile = createTile(type, palette, w, h);
+        int index = row * ((getWidth() + ts - 1) / ts) + col;
+        // Own position, the tiles are read by several threads
+        ByteBuffer src = data.duplicate();
+        src.position(offsets[index]);
+        DataBuffer buffer = tile.getRaster().getDataBuffer();
+        if (buffer instanceof DataBufferInt) {
+            src.asIntBuffer().get(((DataBufferInt) buffer).getData());
+        } else {
+            src.get(((DataBufferByte) buffer).getData());
+        }
+        return tile;
+    }
+
+    @Override
+    public long getByteSize() {
+        // In the page cache, not in the heap
+        return 0;
+    }
+}
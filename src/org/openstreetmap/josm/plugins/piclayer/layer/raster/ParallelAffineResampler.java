@@ -0,0 +1,203 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.geom.AffineTransform;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.openstreetmap.josm.tools.Utils;
+
+/**
+ * Affine resampling of {@code int} ARGB rasters, parallelized over bands of destination rows.
+ * <p>
+ * Pixels are expected to be premultiplied (as in {@link java.awt.image.BufferedImage#TYPE_INT_ARGB_PRE}),
+ * so that interpolation does not bleed the color of transparent pixels. Destination pixels
+ * falling outside of the source are fully transparent.
+ */
+public final class ParallelAffineResampler {
+
+    /**
+     * Interpolation kernel.
+     */
+    public enum Kernel {
+        /** nearest neighbour, 1x1 source pixel */
+        NEAREST,
+        /** bilinear, 2x2 source pixels */
+        BILINEAR,
+        /** bicubic (Catmull-Rom), 4x4 source pixels */
+        BICUBIC
+    }
+
+    private static final ForkJoinPool POOL = Utils.newForkJoinPool(
+            "piclayer.resampler.threads", "piclayer-resampler-%d", Thread.NORM_PRIORITY);
+
+    // Bands with fewer destination pixels are not split any further
+    private static final int MIN_BAND_PIXELS = 32 * 1024;
+
+    private ParallelAffineResampler() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Resamples the source raster into the destination raster.
+     *
+     * @param src       source pixels, row by row
+     * @param srcWidth  width of the source
+     * @param srcHeight height of the source
+     * @param dst       destination pixels, row by row
+     * @param dstWidth  width of the destination
+     * @param dstHeight height of the destination
+     * @param dstToSrc  transform from destination pixel coordinates to source pixel coordinates
+     * @param kernel    interpolation kernel
+     */
+    public static void resample(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight,
+                                AffineTransform dstToSrc, Kernel kernel) {
+        Job job = new Job(src, srcWidth, srcHeight, dst, dstWidth, dstToSrc, kernel);
+        POOL.invoke(new Band(job, 0, dstHeight));
+    }
+
+    private static final class Job {
+        final int[] src;
+        final int sw;
+        final int sh;
+        final int[] dst;
+        final int dw;
+        final double[] m = new double[6];
+        final Kernel kernel;
+
+        Job(int[] src, int sw, int sh, int[] dst, int dw, AffineTransform dstToSrc, Kernel kernel) {
+            this.src = src;
+            this.sw = sw;
+            this.sh = sh;
+            this.dst = dst;
+            this.dw = dw;
+            this.kernel = kernel;
+            dstToSrc.getMatrix(m);
+        }
+    }
+
+    private static final class Band extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient Job job;
+        private final int y0;
+        private final int y1;
+
+        Band(Job job, int y0, int y1) {
+            this.job = job;
+            this.y0 = y0;
+            this.y1 = y1;
+        }
+
+        @Override
+        protected void compute() {
+            if (y1 - y0 > 1 && (long) (y1 - y0) * job.dw > MIN_BAND_PIXELS) {
+                int mid = (y0 + y1) >>> 1;
+                invokeAll(new Band(job, y0, mid), new Band(job, mid, y1));
+            } else {
+                for (int y = y0; y < y1; y++) {
+                    resampleRow(job, y);
+                }
+            }
+        }
+    }
+
+    private static void resampleRow(Job job, int y) {
+        double[] m = job.m;
+        // source position of the center of the first pixel of the row
+        double u = m[0] * 0.5 + m[2] * (y + 0.5) + m[4];
+        double v = m[1] * 0.5 + m[3] * (y + 0.5) + m[5];
+        int offset = y * job.dw;
+        double[] weights = new double[8];
+        for (int x = 0; x < job.dw; x++) {
+            int argb;
+            if (u < 0 || v < 0 || u >= job.sw || v >= job.sh) {
+                argb = 0;
+            } else {
+                switch (job.kernel) {
+                    case NEAREST:
+                        argb = job.src[(int) v * job.sw + (int) u];
+                        break;
+                    case BILINEAR:
+                        argb = bilinear(job, u - 0.5, v - 0.5);
+                        break;
+                    default:
+                        argb = bicubic(job, u - 0.5, v - 0.5, weights);
+                }
+            }
+            job.dst[offset + x] = argb;
+            u += m[0];
+            v += m[1];
+        }
+    }
+
+    private static int bilinear(Job job, double fx, double fy) {
+        int x0 = (int) Math.floor(fx);
+        int y0 = (int) Math.floor(fy);
+        double tx = fx - x0;
+        double ty = fy - y0;
+        int x1 = clamp(x0 + 1, job.sw);
+        int y1 = clamp(y0 + 1, job.sh);
+        x0 = clamp(x0, job.sw);
+        y0 = clamp(y0, job.sh);
+        int p00 = job.src[y0 * job.sw + x0];
+        int p10 = job.src[y0 * job.sw + x1];
+        int p01 = job.src[y1 * job.sw + x0];
+        int p11 = job.src[y1 * job.sw + x1];
+        double w00 = (1 - tx) * (1 - ty);
+        double w10 = tx * (1 - ty);
+        double w01 = (1 - tx) * ty;
+        double w11 = tx * ty;
+        int result = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            double c = w00 * ((p00 >>> shift) & 0xff) + w10 * ((p10 >>> shift) & 0xff)
+                    + w01 * ((p01 >>> shift) & 0xff) + w11 * ((p11 >>> shift) & 0xff);
+            result |= ((int) (c + 0.5)) << shift;
+        }
+        return result;
+    }
+
+    private static int bicubic(Job job, double fx, double fy, double[] weights) {
+        int xi = (int) Math.floor(fx);
+        int yi = (int) Math.floor(fy);
+        cubicWeights(fx - xi, weights, 0);
+        cubicWeights(fy - yi, weights, 4);
+        double a = 0;
+        double r = 0;
+        double g = 0;
+        double b = 0;
+        for (int j = 0; j < 4; j++) {
+            int row = clamp(yi - 1 + j, job.sh) * job.sw;
+            for (int i = 0; i < 4; i++) {
+                int p = job.src[row + clamp(xi - 1 + i, job.sw)];
+                double w = weights[i] * weights[4 + j];
+                a += w * (p >>> 24);
+                r += w * ((p >> 16) & 0xff);
+                g += w * ((p >> 8) & 0xff);
+                b += w * (p & 0xff);
+            }
+        }
+        int ia = clampChannel(a, 255);
+        // premultiplied colors can not exceed alpha, even with overshooting weights
+        return ia << 24 | clampChannel(r, ia) << 16 | clampChannel(g, ia) << 8 | clampChannel(b, ia);
+    }
+
+    private static void cubicWeights(double t, double[] weights, int offset) {
+        // Catmull-Rom spline, a = -0.5
+        double t2 = t * t;
+        double t3 = t2 * t;
+        weights[offset] = -0.5 * t3 + t2 - 0.5 * t;
+        weights[offset + 1] = 1.5 * t3 - 2.5 * t2 + 1;
+        weights[offset + 2] = -1.5 * t3 + 2 * t2 + 0.5 * t;
+        weights[offset + 3] = 0.5 * t3 - 0.5 * t2;
+    }
+
+    private static int clamp(int i, int size) {
+        return i < 0 ? 0 : (i >= size ? size - 1 : i);
+    }
+
+    private static int clampChannel(double c, int max) {
+        int i = (int) (c + 0.5);
+        return i < 0 ? 0 : (i > max ? max : i);
+    }
+}
@@ -0,0 +1,310 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ * Persistent cache of the in-memory levels of {@link ImagePyramid}s, so that pictures do not need
+ * to be decoded again when they are opened another time.
+ * <p>
+ * Every picture file gets one cache file, named after its path, size and modification time.
+ * The levels are stored as tiles of {@link ImagePyramid#TILE_SIZE} pixels, in their compact pixel
+ * layout (see {@link CompactRaster}). They are mapped with {@link FileChannel#map} and served from
+ * the mapping by {@link MappedTileStore}s: opening a cached picture neither decodes it nor copies
+ * its pixels to the heap, only the painted tiles are copied. The least recently used cache files
+ * are deleted when the cache grows above its maximum size.
+ */
+public final class PyramidDiskCache {
+
+    // Preference: whether decoded pictures are cached on disk
+    private static final String PREF_ENABLED = "piclayer.cache.disk";
+    // Preference: maximum size of the cache directory, in megabytes
+    private static final String PREF_MAX_SIZE = "piclayer.cache.max-size";
+    // Preference: smaller pictures are not worth caching
+    private static final String PREF_MIN_PIXELS = "piclayer.cache.min-pixels";
+
+    private static final String EXTENSION = ".pyr";
+    private static final int MAGIC = 0x5049434c; // "PICL"
+    private static final int VERSION = 2;
+    // magic, version, width, height, first level, level count
+    private static final int HEADER_INTS = 6;
+    // width, height, BufferedImage type, palette size; followed by the palette, then by the tiles
+    private static final int LEVEL_HEADER_INTS = 4;
+
+    private PyramidDiskCache() {
+        // Hide default constructor for utilities classes
+    }
+
+    /**
+     * Tells whether a picture of the given size should be cached.
+     *
+     * @param width  the width of the picture at full resolution
+     * @param height the height of the picture at full resolution
+     * @return {@code true} if the cache is enabled and the picture is large enough
+     */
+    public static boolean isEnabled(int width, int height) {
+        return Config.getPref().getBoolean(PREF_ENABLED, true)
+                && (long) width * height >= Config.getPref().getLong(PREF_MIN_PIXELS, 1_000_000L);
+    }
+
+    /**
+     * Maps the cached levels of a picture.
+     *
+     * @param source     the picture file
+     * @param width      the width of the picture at full resolution
+     * @param height     the height of the picture at full resolution
+     * @param firstLevel the first in-memory level expected
+     * @return the levels starting with {@code firstLevel}, or {@code null} if the picture is not cached
+     */
+    public static List<TileStore> read(File source, int width, int height, int firstLevel) {
+        File file = getCacheFile(source);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_INTS * 4L) {
+                return null;
+            }
+            IntBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_INTS * 4L).asIntBuffer();
+            if (header.get(0) != MAGIC || header.get(1) != VERSION || header.get(2) != width || header.get(3) != height
+                    || header.get(4) != firstLevel) {
+                return null;
+            }
+            int levelCount = header.get(5);
+            List<TileStore> levels = new ArrayList<>(levelCount);
+            long offset = HEADER_INTS * 4L;
+            for (int i = 0; i < levelCount; i++) {
+                if (offset + LEVEL_HEADER_INTS * 4 > size) {
+                    return null;
+                }
+                IntBuffer dims = channel.map(FileChannel.MapMode.READ_ONLY, offset, LEVEL_HEADER_INTS * 4).asIntBuffer();
+                int w = dims.get(0);
+                int h = dims.get(1);
+                int type = dims.get(2);
+                int paletteSize = dims.get(3);
+                offset += LEVEL_HEADER_INTS * 4;
+                if (w <= 0 || h <= 0 || paletteSize < 0 || paletteSize > 256 || offset + paletteSize * 4L > size) {
+                    return null;
+                }
+                IndexColorModel palette = null;
+                if (paletteSize > 0) {
+                    int[] colors = new int[paletteSize];
+                    channel.map(FileChannel.MapMode.READ_ONLY, offset, paletteSize * 4L).asIntBuffer().get(colors);
+                    palette = createPalette(type, colors);
+                    offset += paletteSize * 4L;
+                }
+                long bytes = getLevelByteSize(type, palette, w, h);
+                if (bytes > Integer.MAX_VALUE || offset + bytes > size) {
+                    return null;
+                }
+                levels.add(new MappedTileStore(channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes), w, h, type, palette));
+                offset += align(bytes);
+            }
+            // Keep recently used files when the cache is trimmed
+            if (!file.setLastModified(System.currentTimeMillis())) {
+                Logging.trace("Could not touch {0}", file);
+            }
+            return levels;
+        } catch (IOException | RuntimeException e) {
+            Logging.warn(e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the levels of a picture to the cache, then trims the cache to its maximum size.
+     * Should be called from a background thread.
+     *
+     * @param source     the picture file
+     * @param width      the width of the picture at full resolution
+     * @param height     the height of the picture at full resolution
+     * @param firstLevel the level of the first picture of {@code levels}
+     * @param levels     the in-memory levels, starting with {@code firstLevel}
+     */
+    public static void write(File source, int width, int height, int firstLevel, List<BufferedImage> levels) {
+        File file = getCacheFile(source);
+        if (file == null) {
+            return;
+        }
+        for (BufferedImage level : levels) {
+            // Levels in other layouts are stored as 32 bit RGB
+            int type = MappedTileStore.isSupported(level) ? level.getType() : BufferedImage.TYPE_INT_ARGB;
+            IndexColorModel palette = getPalette(level);
+            if (getLevelByteSize(type, palette, level.getWidth(), level.getHeight()) > Integer.MAX_VALUE) {
+                return;
+            }
+        }
+        Path tmp = new File(file.getParentFile(), file.getName() + ".tmp").toPath();
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_INTS * 4);
+                header.asIntBuffer().put(new int[] {MAGIC, VERSION, width, height, firstLevel, levels.size()});
+                writeFully(channel, header);
+                for (BufferedImage level : levels) {
+                    writeLevel(channel, level);
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Logging.warn(e);
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ex) {
+                Logging.trace(ex);
+            }
+            return;
+        }
+        trim(file.getParentFile(), Config.getPref().getLong(PREF_MAX_SIZE, 1024) * 1024 * 1024);
+    }
+
+    private static void writeLevel(FileChannel channel, BufferedImage level) throws IOException {
+        int w = level.getWidth();
+        int h = level.getHeight();
+        boolean supported = MappedTileStore.isSupported(level);
+        int type = supported ? level.getType()
+                : level.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        IndexColorModel palette = supported ? getPalette(level) : null;
+        int paletteSize = palette != null ? palette.getMapSize() : 0;
+        ByteBuffer dims = ByteBuffer.allocate((LEVEL_HEADER_INTS + paletteSize) * 4);
+        IntBuffer ints = dims.asIntBuffer().put(w).put(h).put(type).put(paletteSize);
+        if (palette != null) {
+            int[] colors = new int[paletteSize];
+            palette.getRGBs(colors);
+            ints.put(colors);
+        }
+        writeFully(channel, dims);
+
+        // Tile by tile, in the layout the tiles are read back with
+        int ts = ImagePyramid.TILE_SIZE;
+        int[] rgb = supported ? null : new int[ts * ts];
+        long bytes = 0;
+        for (int y = 0; y < h; y += ts) {
+            for (int x = 0; x < w; x += ts) {
+                int tw = Math.min(ts, w - x);
+                int th = Math.min(ts, h - y);
+                BufferedImage tile = MappedTileStore.createTile(type, palette, tw, th);
+                if (supported) {
+                    tile.getRaster().setDataElements(0, 0, level.getRaster().createChild(x, y, tw, th, 0, 0, null));
+                } else {
+                    level.getRGB(x, y, tw, th, rgb, 0, tw);
+                    tile.setRGB(0, 0, tw, th, rgb, 0, tw);
+                }
+                DataBuffer buffer = tile.getRaster().getDataBuffer();
+                ByteBuffer data;
+                if (buffer instanceof DataBufferInt) {
+                    int[] pixels = ((DataBufferInt) buffer).getData();
+                    data = ByteBuffer.allocate(pixels.length * 4);
+                    data.asIntBuffer().put(pixels);
+                } else {
+                    data = ByteBuffer.wrap(((DataBufferByte) buffer).getData());
+                }
+                bytes += data.remaining();
+                writeFully(channel, data);
+            }
+        }
+        // The next level starts on an int boundary
+        writeFully(channel, ByteBuffer.allocate((int) (align(bytes) - bytes)));
+    }
+
+    /**
+     * Returns the palette of an indexed picture, as it is read back from the cache.
+     */
+    private static IndexColorModel getPalette(BufferedImage level) {
+        if (!(level.getColorModel() instanceof IndexColorModel) || !MappedTileStore.isSupported(level)) {
+            return null;
+        }
+        IndexColorModel cm = (IndexColorModel) level.getColorModel();
+        int[] colors = new int[cm.getMapSize()];
+        cm.getRGBs(colors);
+        return createPalette(level.getType(), colors);
+    }
+
+    private static IndexColorModel createPalette(int type, int[] colors) {
+        boolean alpha = false;
+        for (int c : colors) {
+            alpha |= (c >>> 24) != 0xff;
+        }
+        int bits = type == BufferedImage.TYPE_BYTE_BINARY ? (colors.length <= 2 ? 1 : colors.length <= 4 ? 2 : 4) : 8;
+        return new IndexColorModel(bits, colors.length, colors, 0, alpha, -1, DataBuffer.TYPE_BYTE);
+    }
+
+    private static long getLevelByteSize(int type, IndexColorModel palette, int w, int h) {
+        int ts = ImagePyramid.TILE_SIZE;
+        long bytes = 0;
+        for (int y = 0; y < h; y += ts) {
+            for (int x = 0; x < w; x += ts) {
+                bytes += MappedTileStore.getTileByteSize(type, palette, Math.min(ts, w - x), Math.min(ts, h - y));
+            }
+        }
+        return bytes;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 3) & ~3L;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Deletes the least recently used cache files until the cache is smaller than the given size.
+     */
+    private static void trim(File dir, long maxBytes) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File f : files) {
+            total += f.length();
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File f : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            long length = f.length();
+            // May fail while the file is still mapped on some platforms, it will be deleted later
+            if (f.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static File getCacheFile(File source) {
+        File dir = new File(Config.getDirs().getCacheDirectory(true), "piclayer");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Logging.warn("Could not create the cache directory {0}", dir);
+            return null;
+        }
+        String key = source.getAbsolutePath() + '|' + source.length() + '|' + source.lastModified();
+        return new File(dir, UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + EXTENSION);
+    }
+}
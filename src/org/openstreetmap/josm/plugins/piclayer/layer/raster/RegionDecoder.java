@@ -0,0 +1,37 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Decodes parts of a picture that is too large to be kept in memory at full resolution.
+ */
+public interface RegionDecoder extends Closeable {
+
+    /**
+     * Returns the width of the picture at full resolution.
+     *
+     * @return the width, in pixels
+     */
+    int getWidth();
+
+    /**
+     * Returns the height of the picture at full resolution.
+     *
+     * @return the height, in pixels
+     */
+    int getHeight();
+
+    /**
+     * Decodes a region of the picture. May be called from any thread.
+     *
+     * @param region      the region, in full resolution pixels
+     * @param subsampling only every {@code subsampling}-th pixel is decoded, in both directions
+     * @return the decoded pixels, of size {@code ceil(region.width / subsampling) x ceil(region.height / subsampling)}
+     * @throws IOException in case of error
+     */
+    BufferedImage decode(Rectangle region, int subsampling) throws IOException;
+}
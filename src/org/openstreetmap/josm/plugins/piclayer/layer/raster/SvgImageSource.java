@@ -0,0 +1,217 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.openstreetmap.josm.tools.I18n.tr;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.Locale;
+
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.openstreetmap.josm.tools.Logging;
+import org.openstreetmap.josm.tools.XmlUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.kitfox.svg.SVGDiagram;
+import com.kitfox.svg.SVGException;
+import com.kitfox.svg.SVGUniverse;
+
+/**
+ * {@link ImageSource} rasterizing an SVG drawing, e.g. an architect's site plan, with the SVG renderer of JOSM.
+ * <p>
+ * A vector drawing has no resolution of its own: its full resolution is set to its nominal
+ * size scaled by {@link #OVERSAMPLING}. The scale is fixed, as the calibration files store
+ * the transform of the pixels of the picture. Like large raster
+ * pictures, only a coarse overview is rendered when the layer is loaded, the regions of the
+ * finer levels are rendered in the background when zooming in, and the most recent ones are
+ * kept by the {@link ImagePyramid}, per level.
+ */
+public final class SvgImageSource implements ImageSource {
+
+    /**
+     * How many times finer than its nominal size an SVG drawing can be rendered, a power of two.
+     */
+    public static final int OVERSAMPLING = 16;
+    // Upper bound of the full resolution, so that the tile indexes of the pyramid do not overflow
+    private static final int MAX_SIZE = 1 << 24;
+
+    private final SVGDiagram diagram;
+    private final double scale;
+    private final int width;
+    private final int height;
+
+    private SvgImageSource(SVGDiagram diagram) throws IOException {
+        this.diagram = diagram;
+        diagram.setIgnoringClipHeuristic(true);
+        double w = diagram.getWidth();
+        double h = diagram.getHeight();
+        if (!(w > 0 && h > 0)) {
+            throw new IOException(tr("The SVG drawing has no size"));
+        }
+        scale = getScale(w, h);
+        width = Math.max(1, (int) Math.ceil(w * scale));
+        height = Math.max(1, (int) Math.ceil(h * scale));
+    }
+
+    private static double getScale(double w, double h) {
+        return Math.min(OVERSAMPLING, MAX_SIZE / Math.max(w, h));
+    }
+
+    /**
+     * Parses an SVG file.
+     *
+     * @param file the SVG file
+     * @return the source
+     * @throws IOException if the file can not be read or parsed
+     */
+    public static SvgImageSource open(File file) throws IOException {
+        SVGUniverse universe = new SVGUniverse();
+        URI uri = universe.loadSVG(file.toURI().toURL());
+        SVGDiagram diagram = uri != null ? universe.getDiagram(uri) : null;
+        if (diagram == null) {
+            throw new IOException(tr("Could not read the SVG file {0}", file.getName()));
+        }
+        return new SvgImageSource(diagram);
+    }
+
+    /**
+     * Reads the size of an SVG drawing from the attributes of its root element, without parsing the drawing.
+     * Only sizes in pixels or without units, or given by the view box, are read.
+     *
+     * @param file the SVG file
+     * @return the full resolution size, as the source opened by {@link #open(File)} would have,
+     *         or {@code null} if the size can not be read from the root element
+     * @throws IOException if the file can not be read
+     */
+    public static Dimension probeSize(File file) throws IOException {
+        RootHandler handler = new RootHandler();
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            // No external entity is resolved
+            XMLReader xr = XmlUtils.newSafeSAXParser().getXMLReader();
+            // Nor the DTD, which safe parsers refuse to load
+            xr.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            xr.setContentHandler(handler);
+            xr.parse(new InputSource(is));
+        } catch (SAXException | ParserConfigurationException e) {
+            // Also thrown by the handler to stop once the root element is read
+            Logging.trace(e);
+        }
+        Attributes root = handler.root;
+        if (root == null) {
+            return null;
+        }
+        double[] viewBox = parseNumbers(root.getValue("viewBox"));
+        double w = parseLength(root.getValue("width"), viewBox.length == 4 ? viewBox[2] : Double.NaN);
+        double h = parseLength(root.getValue("height"), viewBox.length == 4 ? viewBox[3] : Double.NaN);
+        if (!(w > 0 && h > 0)) {
+            return null;
+        }
+        double s = getScale(w, h);
+        return new Dimension(Math.max(1, (int) Math.ceil(w * s)), Math.max(1, (int) Math.ceil(h * s)));
+    }
+
+    private static double parseLength(String value, double viewBoxLength) {
+        if (value == null) {
+            return viewBoxLength;
+        }
+        String number = value.trim().toLowerCase(Locale.ROOT);
+        if (number.endsWith("px")) {
+            number = number.substring(0, number.length() - 2).trim();
+        }
+        try {
+            // Other units and percentages are not converted
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private static double[] parseNumbers(String value) {
+        if (value == null) {
+            return new double[0];
+        }
+        String[] parts = value.trim().split("[\\s,]+");
+        double[] numbers = new double[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                numbers[i] = Double.parseDouble(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return new double[0];
+        }
+        return numbers;
+    }
+
+    /**
+     * Keeps the attributes of the root element, then stops the parsing.
+     */
+    private static final class RootHandler extends DefaultHandler {
+        private Attributes root;
+
+        @Override
+        public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+            root = new AttributesImpl(attributes);
+            throw new SAXException("Root element read");
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean prefersRegions() {
+        // Rendering is slow, even for drawings that fit in memory at full resolution
+        return true;
+    }
+
+    @Override
+    public int getLevelCount() {
+        // Rendered at any resolution
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public BufferedImage readRegion(int level, Rectangle region) throws IOException {
+        int subsampling = 1 << level;
+        BufferedImage image = new BufferedImage((region.width + subsampling - 1) / subsampling,
+                (region.height + subsampling - 1) / subsampling, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            g.scale(scale / subsampling, scale / subsampling);
+            g.translate(-region.x / scale, -region.y / scale);
+            // The diagram keeps rendering state
+            synchronized (diagram) {
+                diagram.render(g);
+            }
+        } catch (SVGException e) {
+            throw new IOException(e.getMessage(), e);
+        } finally {
+            g.dispose();
+        }
+        return image;
+    }
+}
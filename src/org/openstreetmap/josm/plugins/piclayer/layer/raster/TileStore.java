@@ -0,0 +1,195 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openstreetmap.josm.spi.preferences.Config;
+
+/**
+ * Pyramid level held as packed tiles of {@link ImagePyramid#TILE_SIZE} pixels instead of one picture, e.g.
+ * compressed on the heap ({@link CompressedTileStore}) or mapped from the disk cache outside of the heap
+ * ({@link MappedTileStore}).
+ * <p>
+ * Only the tiles needed for painting are unpacked. The unpacked tiles of all the stores
+ * share one LRU cache, so that the memory they use does not depend on the number of open layers.
+ * The cache is limited in bytes, the tiles of a large map view on a high resolution screen must
+ * fit in it.
+ */
+public abstract class TileStore {
+
+    // Preference: memory for the unpacked tiles of all the layers, in megabytes, 0 for an eighth of the heap
+    private static final String PREF_TILE_CACHE = "piclayer.memory.tile-cache";
+
+    private static final AtomicLong IDS = new AtomicLong();
+    // Unpacked tiles by store id and tile index, in access order
+    private static final Map<Long, BufferedImage> UNPACKED = new LinkedHashMap<>(16, 0.75f, true);
+    // Memory used by the unpacked tiles, guarded by UNPACKED
+    private static long unpackedBytes;
+
+    private final long id = IDS.incrementAndGet();
+    private final int width;
+    private final int height;
+    private final int columns;
+
+    /**
+     * Constructor
+     *
+     * @param width  the width of the level
+     * @param height the height of the level
+     */
+    protected TileStore(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.columns = (width + ImagePyramid.TILE_SIZE - 1) / ImagePyramid.TILE_SIZE;
+    }
+
+    /**
+     * Unpacks a tile.
+     *
+     * @param col the tile column
+     * @param row the tile row
+     * @return a new picture of the tile, or {@code null} if its data is corrupted
+     */
+    protected abstract BufferedImage readTile(int col, int row);
+
+    /**
+     * Returns the heap memory used by the packed tiles, the unpacked tiles are not included.
+     *
+     * @return the size, in bytes
+     */
+    public abstract long getByteSize();
+
+    /**
+     * Returns a tile, unpacking it if it is not in the cache of unpacked tiles.
+     *
+     * @param col the tile column
+     * @param row the tile row
+     * @return the tile, or {@code null} if its data is corrupted
+     */
+    public BufferedImage getTile(int col, int row) {
+        Long key = (id << 32) | (row * columns + col);
+        synchronized (UNPACKED) {
+            BufferedImage tile = UNPACKED.get(key);
+            if (tile != null) {
+                return tile;
+            }
+        }
+        BufferedImage tile = readTile(col, row);
+        if (tile == null) {
+            return null;
+        }
+        long max = getUnpackedBudget();
+        synchronized (UNPACKED) {
+            BufferedImage old = UNPACKED.put(key, tile);
+            if (old != null) {
+                unpackedBytes -= CompactRaster.getByteSize(old);
+            }
+            unpackedBytes += CompactRaster.getByteSize(tile);
+            // The newest tile is kept, even if it is larger than the budget
+            Iterator<BufferedImage> it = UNPACKED.values().iterator();
+            while (unpackedBytes > max && UNPACKED.size() > 1) {
+                unpackedBytes -= CompactRaster.getByteSize(it.next());
+                it.remove();
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the memory budget for the unpacked tiles of all the layers.
+     *
+     * @return the budget, in bytes
+     */
+    public static long getUnpackedBudget() {
+        long megabytes = Config.getPref().getLong(PREF_TILE_CACHE, 0);
+        return megabytes > 0 ? megabytes * 1024 * 1024 : Runtime.getRuntime().maxMemory() / 8;
+    }
+
+    /**
+     * Returns the memory used by the unpacked tiles of all the layers.
+     *
+     * @return the size, in bytes
+     */
+    public static long getUnpackedBytes() {
+        synchronized (UNPACKED) {
+            return unpackedBytes;
+        }
+    }
+
+    /**
+     * Unpacks the whole level, e.g. for the coarsest level of a pyramid, which is kept in memory.
+     *
+     * @return a new picture of the level, or {@code null} if its data is corrupted
+     */
+    public BufferedImage toImage() {
+        BufferedImage first = readTile(0, 0);
+        if (first == null) {
+            return null;
+        }
+        if (first.getWidth() == width && first.getHeight() == height) {
+            return first;
+        }
+        // Same sample model as the tiles, so that the picture keeps their standard type
+        WritableRaster raster = first.getRaster().createCompatibleWritableRaster(width, height);
+        int ts = ImagePyramid.TILE_SIZE;
+        for (int row = 0; row * ts < height; row++) {
+            for (int col = 0; col * ts < width; col++) {
+                BufferedImage tile = col == 0 && row == 0 ? first : readTile(col, row);
+                if (tile == null) {
+                    return null;
+                }
+                raster.setDataElements(col * ts, row * ts, tile.getRaster());
+            }
+        }
+        return new BufferedImage(first.getColorModel(), raster, first.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the pixel layout of the tiles.
+     *
+     * @return a short description of the layout, see {@link CompactRaster#describe(BufferedImage)}
+     */
+    public String getPixelFormat() {
+        BufferedImage tile = readTile(0, 0);
+        return tile != null ? CompactRaster.describe(tile) : null;
+    }
+
+    /**
+     * Returns the width of the level.
+     *
+     * @return the width, in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the height of the level.
+     *
+     * @return the height, in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Removes the unpacked tiles of this store from the cache.
+     */
+    public void dispose() {
+        synchronized (UNPACKED) {
+            Iterator<Map.Entry<Long, BufferedImage>> it = UNPACKED.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Long, BufferedImage> entry = it.next();
+                if (entry.getKey() >>> 32 == id) {
+                    unpackedBytes -= CompactRaster.getByteSize(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+    }
+}
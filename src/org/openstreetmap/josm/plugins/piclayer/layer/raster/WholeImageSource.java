@@ -0,0 +1,78 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import javax.swing.ImageIcon;
+
+/**
+ * {@link ImageSource} of a picture already decoded in memory, for the layers that only
+ * provide a whole {@link Image}.
+ */
+public final class WholeImageSource implements ImageSource {
+
+    private volatile BufferedImage image;
+
+    /**
+     * Constructor
+     *
+     * @param image the picture, AWT toolkit images are loaded completely
+     */
+    public WholeImageSource(Image image) {
+        if (!(image instanceof BufferedImage)) {
+            image = new ImageIcon(image).getImage();
+        }
+        this.image = ImagePyramid.toBufferedImage(image);
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public int getLevelCount() {
+        return 1;
+    }
+
+    @Override
+    public BufferedImage readRegion(int level, Rectangle region) {
+        BufferedImage src = image;
+        if (level == 0 && region.x == 0 && region.y == 0 && region.width == src.getWidth() && region.height == src.getHeight()) {
+            return src;
+        }
+        BufferedImage sub = src.getSubimage(region.x, region.y, region.width, region.height);
+        if (level == 0) {
+            return sub;
+        }
+        int subsampling = 1 << level;
+        BufferedImage dst = new BufferedImage((region.width + subsampling - 1) / subsampling,
+                (region.height + subsampling - 1) / subsampling,
+                src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = dst.createGraphics();
+        try {
+            g.drawImage(sub, 0, 0, dst.getWidth(), dst.getHeight(), null);
+        } finally {
+            g.dispose();
+        }
+        return dst;
+    }
+
+    @Override
+    public boolean canReadRegions() {
+        return false;
+    }
+
+    @Override
+    public void close() {
+        image = null;
+    }
+}
@@ -3,6 +3,8 @@ package org.openstreetmap.josm.plugins.piclayer.transform;
 
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,6 +14,13 @@ import org.openstreetmap.josm.tools.Logging;
 
 public class PictureTransform {
 
+    /** Name of the property fired when the transform matrix changed */
+    public static final String TRANSFORM_PROP = "transform";
+    /** Name of the property fired when the image position changed */
+    public static final String IMAGE_POSITION_PROP = "imagePosition";
+
+    private final PropertyChangeSupport changes = new PropertyChangeSupport(this);
+
     private AffineTransform cachedTransform;
     private EastNorth imagePosition;
 
@@ -52,6 +61,7 @@ public class PictureTransform {
             case 1: {
                 cachedTransform.concatenate(AffineTransform.getTranslateInstance(desiredPoint.getX() - originPoint.getX(),
                         desiredPoint.getY() - originPoint.getY()));
+                fireTransformChanged();
                 break;
             }
             case 2: {
@@ -111,6 +121,7 @@ public class PictureTransform {
             try {
                 cachedTransform.concatenate(solveEquation(desiredPoints));
                 modified = true;
+                fireTransformChanged();
                 desiredPoints.clear();
             } catch (NoSolutionException e) {
                 Logging.error(e.getMessage());
@@ -133,14 +144,32 @@ public class PictureTransform {
             transform.transform(point, point);
         }
         modified = true;
+        fireTransformChanged();
+    }
+
+    /**
+     * Concatenates a transform to the current one, without moving the origin points.
+     *
+     * @param transform the transform to concatenate
+     */
+    public void concatenateTransform(AffineTransform transform) {
+        cachedTransform.concatenate(transform);
+        fireTransformChanged();
     }
 
+    /**
+     * Returns the transform matrix. It must not be modified directly,
+     * use the methods of this class so that listeners are notified.
+     *
+     * @return the transform matrix
+     */
     public AffineTransform getTransform() {
         return cachedTransform;
     }
 
     public void setTransform(AffineTransform newTransform) {
         cachedTransform = new AffineTransform(newTransform);
+        fireTransformChanged();
     }
 
     public EastNorth getImagePosition() {
@@ -148,7 +177,22 @@ public class PictureTransform {
     }
 
     public void setImagePosition(EastNorth imagePosition) {
+        EastNorth old = this.imagePosition;
         this.imagePosition = imagePosition;
+        changes.firePropertyChange(IMAGE_POSITION_PROP, old, imagePosition);
+    }
+
+    public void addPropertyChangeListener(PropertyChangeListener listener) {
+        changes.addPropertyChangeListener(listener);
+    }
+
+    public void removePropertyChangeListener(PropertyChangeListener listener) {
+        changes.removePropertyChangeListener(listener);
+    }
+
+    private void fireTransformChanged() {
+        // old value is not kept, the matrix is modified in place
+        changes.firePropertyChange(TRANSFORM_PROP, null, cachedTransform);
     }
 
 
@@ -240,5 +284,6 @@ public class PictureTransform {
         latLonRefPoints.clear();
         modified = false;
         cachedTransform = new AffineTransform();
+        fireTransformChanged();
     }
 }
@@ -0,0 +1,103 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.openstreetmap.josm.data.ProjectionBounds;
+
+/**
+ * Unit tests of {@link FootprintIndex}.
+ */
+class FootprintIndexTest {
+
+    // More than NODE_SIZE * NODE_SIZE items, so that the tree has at least three levels
+    private static final int MANY = 16 * 16 * 3 + 7;
+
+    private static ProjectionBounds randomBox(Random random, double extent, double maxSize) {
+        double east = random.nextDouble() * extent;
+        double north = random.nextDouble() * extent;
+        return new ProjectionBounds(east, north,
+                east + random.nextDouble() * maxSize, north + random.nextDouble() * maxSize);
+    }
+
+    private static List<Integer> bruteForce(List<ProjectionBounds> bounds, ProjectionBounds box) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < bounds.size(); i++) {
+            ProjectionBounds b = bounds.get(i);
+            if (b.minEast <= box.maxEast && b.maxEast >= box.minEast
+                    && b.minNorth <= box.maxNorth && b.maxNorth >= box.minNorth) {
+                found.add(i);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Compares the result of the index with a scan of all footprints, for random boxes.
+     */
+    private static void checkRandomQueries(int count, long seed) {
+        Random random = new Random(seed);
+        List<Integer> items = new ArrayList<>(count);
+        List<ProjectionBounds> bounds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            items.add(i);
+            bounds.add(randomBox(random, 1000, 50));
+        }
+        FootprintIndex<Integer> index = new FootprintIndex<>(items, bounds);
+        assertEquals(count, index.size());
+
+        for (int q = 0; q < 500; q++) {
+            // From empty results to boxes covering everything
+            ProjectionBounds box = randomBox(random, 1100, q % 10 == 0 ? 2000 : 200);
+            assertEquals(bruteForce(bounds, box), index.query(box), count + " items, query " + q);
+        }
+        // Boxes touching a footprint only on its edge or corner
+        for (ProjectionBounds b : bounds) {
+            ProjectionBounds corner = new ProjectionBounds(b.maxEast, b.maxNorth, b.maxEast + 1, b.maxNorth + 1);
+            assertEquals(bruteForce(bounds, corner), index.query(corner));
+        }
+    }
+
+    @Test
+    void testEmptyIndex() {
+        FootprintIndex<Integer> index = new FootprintIndex<>(Collections.emptyList(), Collections.emptyList());
+        assertEquals(0, index.size());
+        assertTrue(index.query(new ProjectionBounds(-1e9, -1e9, 1e9, 1e9)).isEmpty());
+    }
+
+    @Test
+    void testSingleItem() {
+        checkRandomQueries(1, 1);
+    }
+
+    @Test
+    void testOneNode() {
+        checkRandomQueries(16, 2);
+    }
+
+    @Test
+    void testSeveralLevels() {
+        checkRandomQueries(MANY, 3);
+    }
+
+    @Test
+    void testOverlappingFootprints() {
+        List<String> items = new ArrayList<>();
+        List<ProjectionBounds> bounds = new ArrayList<>();
+        for (int i = 0; i < MANY; i++) {
+            items.add("item" + i);
+            bounds.add(new ProjectionBounds(-i, -i, i, i));
+        }
+        FootprintIndex<String> index = new FootprintIndex<>(items, bounds);
+        // Every footprint contains the origin, the items come back in their original order
+        assertEquals(items, index.query(new ProjectionBounds(0, 0, 0, 0)));
+        assertEquals(items.subList(10, MANY), index.query(new ProjectionBounds(10, 10, 20, 20)));
+    }
+}
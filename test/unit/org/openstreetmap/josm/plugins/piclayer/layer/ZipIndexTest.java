@@ -0,0 +1,204 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+import org.openstreetmap.josm.plugins.piclayer.layer.raster.ImageSource;
+
+/**
+ * Unit tests of {@link ZipIndex}.
+ */
+class ZipIndexTest {
+
+    @TempDir
+    Path tmp;
+
+    private static BufferedImage createImage(int width, int height, int seed) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7 + seed) << 16 | (y * 5 + seed) << 8 | seed);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+
+    private static void putStored(ZipOutputStream zip, ZipEntry entry, byte[] data) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc.getValue());
+        zip.putNextEntry(entry);
+        zip.write(data);
+        zip.closeEntry();
+    }
+
+    /**
+     * Checks that the bytes at the data offset of the entry are the bytes of the entry,
+     * and that the picture opened from the archive is the original one.
+     */
+    private static void assertEntry(File archive, ZipIndex.Entry entry, BufferedImage expected) throws IOException {
+        byte[] content;
+        try (ZipFile zipFile = new ZipFile(archive);
+             InputStream is = zipFile.getInputStream(zipFile.getEntry(entry.getName()))) {
+            content = is.readAllBytes();
+        }
+        if (entry.isStored()) {
+            assertTrue(entry.getDataOffset() > 0, entry.getName());
+            try (FileChannel channel = FileChannel.open(archive.toPath(), StandardOpenOption.READ)) {
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, entry.getDataOffset(), entry.getSize());
+                byte[] bytes = new byte[mapped.remaining()];
+                mapped.get(bytes);
+                assertArrayEquals(content, bytes);
+            }
+        } else {
+            assertEquals(-1L, entry.getDataOffset(), entry.getName());
+        }
+
+        ImageSource source = ZipIndex.openImage(archive, entry, NullProgressMonitor.INSTANCE);
+        assertNotNull(source, entry.getName());
+        try {
+            assertEquals(entry.isStored(), source.canReadRegions(), entry.getName());
+            BufferedImage image = source.readRegion(0, new Rectangle(expected.getWidth(), expected.getHeight()));
+            for (int y = 0; y < expected.getHeight(); y++) {
+                for (int x = 0; x < expected.getWidth(); x++) {
+                    assertEquals(expected.getRGB(x, y), image.getRGB(x, y), entry.getName() + " at " + x + "," + y);
+                }
+            }
+        } finally {
+            source.close();
+        }
+    }
+
+    @Test
+    void testStoredAndDeflatedEntries() throws IOException {
+        BufferedImage stored = createImage(40, 30, 1);
+        BufferedImage extra = createImage(33, 21, 2);
+        BufferedImage deflated = createImage(25, 35, 3);
+        File archive = tmp.resolve("pictures.zip").toFile();
+        try (ZipOutputStream zip = new ZipOutputStream(Files.newOutputStream(archive.toPath()))) {
+            zip.putNextEntry(new ZipEntry("readme.txt"));
+            zip.write("not a picture".getBytes(StandardCharsets.UTF_8));
+            zip.closeEntry();
+
+            putStored(zip, new ZipEntry("stored.png"), toPng(stored));
+
+            // The local header gets a longer extended timestamp than the central directory
+            ZipEntry withExtra = new ZipEntry("dir/extra.png");
+            withExtra.setExtra(new byte[] {(byte) 0xfe, (byte) 0xca, 4, 0, 1, 2, 3, 4});
+            withExtra.setLastModifiedTime(FileTime.fromMillis(1_500_000_000_000L));
+            withExtra.setLastAccessTime(FileTime.fromMillis(1_600_000_000_000L));
+            withExtra.setCreationTime(FileTime.fromMillis(1_400_000_000_000L));
+            withExtra.setComment("picture with an extra field");
+            putStored(zip, withExtra, toPng(extra));
+
+            // Deflated entries are written with a data descriptor
+            zip.putNextEntry(new ZipEntry("deflated.png"));
+            zip.write(toPng(deflated));
+            zip.closeEntry();
+        }
+
+        ZipIndex index = ZipIndex.read(archive);
+        assertEquals(3, index.getImages().size());
+        assertTrue(index.getImage("stored.png").isStored());
+        assertTrue(index.getImage("dir/extra.png").isStored());
+        assertFalse(index.getImage("deflated.png").isStored());
+        assertEntry(archive, index.getImage("stored.png"), stored);
+        assertEntry(archive, index.getImage("dir/extra.png"), extra);
+        assertEntry(archive, index.getImage("deflated.png"), deflated);
+    }
+
+    @Test
+    void testStoredEntryWithDataDescriptor() throws IOException {
+        BufferedImage first = createImage(20, 10, 4);
+        BufferedImage second = createImage(12, 18, 5);
+        File archive = tmp.resolve("descriptor.zip").toFile();
+        try (OutputStream out = Files.newOutputStream(archive.toPath())) {
+            out.write(writeDescriptorZip(new String[] {"first.png", "second.png"},
+                    new byte[][] {toPng(first), toPng(second)}));
+        }
+
+        ZipIndex index = ZipIndex.read(archive);
+        assertEquals(2, index.getImages().size());
+        assertEntry(archive, index.getImage("first.png"), first);
+        assertEntry(archive, index.getImage("second.png"), second);
+    }
+
+    /**
+     * Writes an archive of stored entries with a data descriptor: their local header has no size
+     * and an extra field that is not in the central directory.
+     */
+    private static byte[] writeDescriptorZip(String[] names, byte[][] contents) {
+        ByteBuffer zip = ByteBuffer.allocate(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer cd = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        byte[] localExtra = {(byte) 0xfe, (byte) 0xca, 6, 0, 1, 2, 3, 4, 5, 6};
+        for (int i = 0; i < names.length; i++) {
+            byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+            byte[] data = contents[i];
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            int offset = zip.position();
+
+            zip.putInt(0x04034b50).putShort((short) 10).putShort((short) 0x08).putShort((short) ZipEntry.STORED)
+                    .putShort((short) 0).putShort((short) 0x21)
+                    .putInt(0).putInt(0).putInt(0)
+                    .putShort((short) name.length).putShort((short) localExtra.length)
+                    .put(name).put(localExtra).put(data);
+            zip.putInt(0x08074b50).putInt((int) crc.getValue()).putInt(data.length).putInt(data.length);
+
+            cd.putInt(0x02014b50).putShort((short) 20).putShort((short) 10).putShort((short) 0x08)
+                    .putShort((short) ZipEntry.STORED).putShort((short) 0).putShort((short) 0x21)
+                    .putInt((int) crc.getValue()).putInt(data.length).putInt(data.length)
+                    .putShort((short) name.length).putShort((short) 0).putShort((short) 0)
+                    .putShort((short) 0).putShort((short) 0).putInt(0).putInt(offset)
+                    .put(name);
+        }
+        int cdOffset = zip.position();
+        int cdSize = cd.position();
+        zip.put(cd.array(), 0, cdSize);
+        zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0)
+                .putShort((short) names.length).putShort((short) names.length)
+                .putInt(cdSize).putInt(cdOffset).putShort((short) 0);
+        byte[] bytes = new byte[zip.position()];
+        zip.flip();
+        zip.get(bytes);
+        return bytes;
+    }
+}
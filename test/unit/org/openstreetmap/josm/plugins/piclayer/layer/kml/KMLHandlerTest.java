@@ -0,0 +1,121 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.kml;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.xml.sax.helpers.AttributesImpl;
+
+/**
+ * Unit tests of {@link KMLHandler}.
+ */
+class KMLHandlerTest {
+
+    @TempDir
+    Path tmp;
+
+    private static void start(KMLHandler handler, String name) {
+        handler.startElement("", name, name, new AttributesImpl());
+    }
+
+    private static void end(KMLHandler handler, String name) {
+        handler.endElement("", name, name);
+    }
+
+    /**
+     * Gives the text of an element in chunks of the given size, as a parser may do at buffer boundaries.
+     */
+    private static void element(KMLHandler handler, String name, String value, int chunk) {
+        start(handler, name);
+        char[] ch = ("  " + value + "  ").toCharArray();
+        for (int i = 0; i < ch.length; i += chunk) {
+            handler.characters(ch, i, Math.min(chunk, ch.length - i));
+        }
+        end(handler, name);
+    }
+
+    private static void groundOverlay(KMLHandler handler, String name, double north, double south,
+                                      double east, double west, double rotation, int chunk) {
+        start(handler, "GroundOverlay");
+        element(handler, "name", name, chunk);
+        start(handler, "Icon");
+        element(handler, "href", name + ".jpg", chunk);
+        end(handler, "Icon");
+        start(handler, "LatLonBox");
+        element(handler, "north", Double.toString(north), chunk);
+        element(handler, "south", Double.toString(south), chunk);
+        element(handler, "east", Double.toString(east), chunk);
+        element(handler, "west", Double.toString(west), chunk);
+        element(handler, "rotation", Double.toString(rotation), chunk);
+        end(handler, "LatLonBox");
+        end(handler, "GroundOverlay");
+    }
+
+    private static void assertOverlay(KMLGroundOverlay overlay, String name, double north, double south,
+                                      double east, double west, double rotation) {
+        assertEquals(name, overlay.getName());
+        assertEquals(name + ".jpg", overlay.getFileName());
+        assertEquals(north, overlay.getNorth(), 0);
+        assertEquals(south, overlay.getSouth(), 0);
+        assertEquals(east, overlay.getEast(), 0);
+        assertEquals(west, overlay.getWest(), 0);
+        assertEquals(rotation, overlay.getRotate(), 0);
+    }
+
+    @Test
+    void testSplitCharacters() {
+        for (int chunk = 1; chunk <= 8; chunk++) {
+            List<KMLGroundOverlay> overlays = new ArrayList<>();
+            KMLHandler handler = new KMLHandler(overlays::add);
+            start(handler, "kml");
+            start(handler, "Document");
+            // Names outside of a ground overlay are ignored
+            element(handler, "name", "document", chunk);
+            groundOverlay(handler, "first", 48.8584123, 48.8571987, 2.2951234, 2.2932109, -12.5, chunk);
+            groundOverlay(handler, "second", -33.8567844, -33.8590001, 151.2152967, 151.2130012, 0.25, chunk);
+            groundOverlay(handler, "third", 0.0001, -0.0001, 180, 179.9999, 359.75, chunk);
+            end(handler, "Document");
+            end(handler, "kml");
+
+            assertEquals(3, overlays.size(), "chunk " + chunk);
+            assertOverlay(overlays.get(0), "first", 48.8584123, 48.8571987, 2.2951234, 2.2932109, -12.5);
+            assertOverlay(overlays.get(1), "second", -33.8567844, -33.8590001, 151.2152967, 151.2130012, 0.25);
+            assertOverlay(overlays.get(2), "third", 0.0001, -0.0001, 180, 179.9999, 359.75);
+        }
+    }
+
+    @Test
+    void testOverlaysInDocumentOrder() throws IOException {
+        StringBuilder kml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<kml xmlns=\"http://www.opengis.net/kml/2.2\"><Document><name>document</name>\n");
+        for (int i = 0; i < 50; i++) {
+            kml.append("<Folder><GroundOverlay><name>overlay").append(i).append("</name>")
+               .append("<Icon><href>overlay").append(i).append(".jpg</href></Icon>")
+               .append("<LatLonBox><north>").append(10 + i).append(".123456789</north>")
+               .append("<south>").append(i).append(".987654321</south>")
+               .append("<east>").append(20 + i).append(".5</east>")
+               .append("<west>-").append(i).append(".25</west>")
+               .append("<rotation>").append(i).append("</rotation></LatLonBox>")
+               .append("</GroundOverlay></Folder>\n");
+        }
+        kml.append("</Document></kml>\n");
+        Path file = tmp.resolve("overlays.kml");
+        Files.write(file, kml.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<KMLGroundOverlay> overlays = new ArrayList<>();
+        new KMLReader(file.toFile()).read(overlays::add);
+        assertEquals(50, overlays.size());
+        for (int i = 0; i < 50; i++) {
+            assertOverlay(overlays.get(i), "overlay" + i, Double.parseDouble((10 + i) + ".123456789"),
+                    Double.parseDouble(i + ".987654321"), 20 + i + 0.5, -(i + 0.25), i);
+        }
+    }
+}
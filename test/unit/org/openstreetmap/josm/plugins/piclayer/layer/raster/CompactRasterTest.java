@@ -0,0 +1,117 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.WritableRaster;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit tests of {@link CompactRaster}.
+ */
+class CompactRasterTest {
+
+    // Not a multiple of the pixels per byte of the packed layouts
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    private static BufferedImage createImage(int type, int[] colors) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, type);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                image.setRGB(x, y, colors[(x + y * WIDTH) % colors.length]);
+            }
+        }
+        return image;
+    }
+
+    private static int[] randomColors(int count, int alpha) {
+        int[] colors = new int[count];
+        for (int i = 0; i < count; i++) {
+            colors[i] = alpha << 24 | (i * 0x9e3779b9) & 0xffffff;
+        }
+        return colors;
+    }
+
+    /**
+     * Checks that the compacted picture has the given layout and the same colors as the original.
+     */
+    private static void assertRoundTrip(BufferedImage src, int type, int bits) {
+        BufferedImage dst = CompactRaster.compact(src);
+        assertEquals(type, dst.getType());
+        assertEquals(bits, dst.getColorModel().getPixelSize());
+        assertTrue(CompactRaster.getByteSize(dst) < CompactRaster.getByteSize(src));
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(src.getRGB(x, y), dst.getRGB(x, y), x + "," + y);
+            }
+        }
+    }
+
+    @Test
+    void testIndexed() {
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(1, 0xff)), BufferedImage.TYPE_BYTE_BINARY, 1);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, new int[] {0xff000000, 0xffffffff}),
+                BufferedImage.TYPE_BYTE_BINARY, 1);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(3, 0xff)), BufferedImage.TYPE_BYTE_BINARY, 2);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(16, 0xff)), BufferedImage.TYPE_BYTE_BINARY, 4);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(17, 0xff)), BufferedImage.TYPE_BYTE_INDEXED, 8);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(256, 0xff)), BufferedImage.TYPE_BYTE_INDEXED, 8);
+    }
+
+    @Test
+    void testGray() {
+        int[] levels = {0xff000000, 0xff555555, 0xffaaaaaa, 0xffffffff};
+        assertRoundTrip(createImage(BufferedImage.TYPE_BYTE_GRAY, levels), BufferedImage.TYPE_BYTE_BINARY, 2);
+        // As many gray levels as the picture can hold, nothing to gain
+        BufferedImage gray = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster raster = gray.getRaster();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                raster.setSample(x, y, 0, (x + y * WIDTH) & 0xff);
+            }
+        }
+        assertSame(gray, CompactRaster.compact(gray));
+    }
+
+    @Test
+    void testBgr() {
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_RGB, randomColors(257, 0xff)), BufferedImage.TYPE_3BYTE_BGR, 24);
+        assertRoundTrip(createImage(BufferedImage.TYPE_INT_ARGB, randomColors(WIDTH * HEIGHT, 0xff)),
+                BufferedImage.TYPE_3BYTE_BGR, 24);
+    }
+
+    @Test
+    void testAlpha() {
+        int[] colors = randomColors(5, 0xff);
+        colors[0] = 0;
+        colors[1] = 0x80123456;
+        BufferedImage src = createImage(BufferedImage.TYPE_INT_ARGB, colors);
+        assertRoundTrip(src, BufferedImage.TYPE_BYTE_BINARY, 4);
+        assertTrue(CompactRaster.compact(src).getColorModel().hasAlpha());
+
+        // Neither few colors nor opaque
+        BufferedImage translucent = createImage(BufferedImage.TYPE_INT_ARGB, randomColors(300, 0x80));
+        assertSame(translucent, CompactRaster.compact(translucent));
+    }
+
+    @Test
+    void testLargeSamples() {
+        BufferedImage gray16 = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_USHORT_GRAY);
+        gray16.getRaster().setSample(1, 1, 0, 0x1234);
+        assertSame(gray16, CompactRaster.compact(gray16));
+
+        ComponentColorModel cm = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+                false, false, Transparency.OPAQUE, DataBuffer.TYPE_FLOAT);
+        BufferedImage rgbFloat = new BufferedImage(cm, cm.createCompatibleWritableRaster(WIDTH, HEIGHT), false, null);
+        assertSame(rgbFloat, CompactRaster.compact(rgbFloat));
+    }
+}
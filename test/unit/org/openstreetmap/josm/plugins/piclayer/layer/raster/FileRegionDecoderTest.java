@@ -0,0 +1,148 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.piclayer.layer.raster;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openstreetmap.josm.gui.progress.NullProgressMonitor;
+
+/**
+ * Unit tests of {@link FileRegionDecoder}.
+ */
+class FileRegionDecoderTest {
+
+    private static final int WIDTH = 240;
+    private static final int HEIGHT = 180;
+
+    @TempDir
+    Path tmp;
+
+    /**
+     * Pixel of the full resolution picture at (x, y): red and green give the position,
+     * blue tells from which image of the file the pixel was decoded.
+     */
+    private static int pixel(int x, int y, int factor) {
+        return 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8 | factor * 40;
+    }
+
+    private static BufferedImage createImage(int factor) {
+        int w = (WIDTH + factor - 1) / factor;
+        int h = (HEIGHT + factor - 1) / factor;
+        BufferedImage image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                image.setRGB(x, y, pixel(x * factor, y * factor, factor));
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Writes a TIFF file with the full resolution picture, then overviews reduced by the given factors.
+     */
+    private File writeTiff(int... factors) throws IOException {
+        File file = tmp.resolve("overviews.tif").toFile();
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("tiff").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(file)) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            writer.writeToSequence(new IIOImage(createImage(1), null, null), null);
+            for (int factor : factors) {
+                BufferedImage overview = createImage(factor);
+                IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(overview), writer.getDefaultWriteParam());
+                TIFFDirectory dir = TIFFDirectory.createFromMetadata(metadata);
+                dir.addTIFFField(new TIFFField(BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE),
+                        TIFFTag.TIFF_LONG, 1, new long[] {BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION}));
+                writer.writeToSequence(new IIOImage(overview, null, dir.getAsMetadata()), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return file;
+    }
+
+    /**
+     * Checks that a decoded picture has the size and the pixels of the region subsampled from the full
+     * resolution, and that it was decoded from the image reduced by {@code factor}.
+     */
+    private static void assertRegion(BufferedImage decoded, Rectangle region, int subsampling, int factor) {
+        assertNotNull(decoded);
+        assertEquals((region.width + subsampling - 1) / subsampling, decoded.getWidth(), "width");
+        assertEquals((region.height + subsampling - 1) / subsampling, decoded.getHeight(), "height");
+        for (int y = 0; y < decoded.getHeight(); y++) {
+            for (int x = 0; x < decoded.getWidth(); x++) {
+                assertEquals(Integer.toHexString(pixel(region.x + x * subsampling, region.y + y * subsampling, factor)),
+                        Integer.toHexString(decoded.getRGB(x, y)), "pixel " + x + "," + y);
+            }
+        }
+    }
+
+    /**
+     * An overview reduced 3 times is only used when 3 divides the subsampling, other subsamplings
+     * are decoded from the overview reduced 2 times, without distortion.
+     *
+     * @throws IOException never
+     */
+    @Test
+    void testThreeTimesOverview() throws IOException {
+        try (FileRegionDecoder decoder = FileRegionDecoder.open(writeTiff(2, 3))) {
+            assertNotNull(decoder);
+            assertEquals(WIDTH, decoder.getWidth());
+            assertEquals(HEIGHT, decoder.getHeight());
+            assertEquals(3, decoder.getLevelCount());
+
+            Rectangle all = new Rectangle(WIDTH, HEIGHT);
+            assertRegion(decoder.decode(all, 1), all, 1, 1);
+            assertRegion(decoder.decode(all, 2), all, 2, 2);
+            assertRegion(decoder.decode(all, 4), all, 4, 2);
+            assertRegion(decoder.decode(all, 3), all, 3, 3);
+            assertRegion(decoder.decode(all, 6), all, 6, 3);
+
+            Rectangle region = new Rectangle(64, 32, 100, 70);
+            assertRegion(decoder.decode(region, 4), region, 4, 2);
+            assertRegion(decoder.readRegion(2, region), region, 4, 2);
+            Rectangle region3 = new Rectangle(66, 30, 100, 70);
+            assertRegion(decoder.decode(region3, 6), region3, 6, 3);
+
+            assertRegion(decoder.readLevel(2, NullProgressMonitor.INSTANCE), all, 4, 2);
+            assertRegion(decoder.readLevel(3, NullProgressMonitor.INSTANCE), all, 8, 2);
+        }
+    }
+
+    /**
+     * Without an overview dividing the subsampling, the full resolution image is subsampled.
+     *
+     * @throws IOException never
+     */
+    @Test
+    void testOnlyThreeTimesOverview() throws IOException {
+        try (FileRegionDecoder decoder = FileRegionDecoder.open(writeTiff(3))) {
+            assertNotNull(decoder);
+            Rectangle region = new Rectangle(64, 32, 100, 70);
+            assertRegion(decoder.decode(region, 4), region, 4, 1);
+            assertRegion(decoder.readLevel(2, NullProgressMonitor.INSTANCE), new Rectangle(WIDTH, HEIGHT), 4, 1);
+            Rectangle region3 = new Rectangle(66, 30, 100, 70);
+            assertRegion(decoder.decode(region3, 3), region3, 3, 3);
+        }
+    }
+}